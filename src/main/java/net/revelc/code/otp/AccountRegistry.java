@@ -0,0 +1,336 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Maps account IDs to dense integer slots, and keeps the configuration and state of each account
+ * in parallel primitive arrays indexed by slot, instead of one object per account. The IDs are
+ * found through an open-addressing table of slots, with linear probing.
+ *
+ * <p>
+ * Lookups and reads don't lock. Registrations are serialized, and publish each new slot with a
+ * release write, after its fields are set. The per-slot arrays are allocated in pages that never
+ * move, so growing the registry only copies the (small) arrays of pages, and the lookup table.
+ *
+ * <p>
+ * The algorithm, digits and time step of an account are packed in a single word, so that
+ * re-registering an account replaces them atomically. Each getter reads that word on its own, so
+ * readers that need the fields of a single version, while the account may be re-registered, read
+ * the word once with {@link #getConfig(int)}, and unpack it with {@link #configAlgorithm(long)},
+ * {@link #configDigits(long)} and {@link #configTimestep(long)}. The key reference is separate,
+ * and may be replaced independently, with {@link #setKeyRef(int, int)}.
+ *
+ * <p>
+ * Key references are opaque integers, such as {@link KeyArena} slots; the keys themselves are never
+ * held here. Neither are the references written to snapshots, since they don't outlive the arena
+ * they point into.
+ */
+public class AccountRegistry {
+
+  private static final int PAGE_BITS = 12;
+  private static final int PAGE_SIZE = 1 << PAGE_BITS;
+  private static final int PAGE_MASK = PAGE_SIZE - 1;
+  private static final int SNAPSHOT_MAGIC = 0x41525332; // ARS2
+  private static final List<String> ALGORITHMS = List.of("HmacSHA1", "HmacSHA256", "HmacSHA512");
+
+  private static final VarHandle INTS = MethodHandles.arrayElementVarHandle(int[].class);
+  private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+
+  // slot + 1 for each used bucket, or 0 for an empty one
+  private volatile int[] table = new int[16];
+  private volatile String[][] ids = new String[0][];
+  // the algorithm index in the low byte, then the digits, then the time step in the high int
+  private volatile long[][] configs = new long[0][];
+  private volatile int[][] keyRefs = new int[0][];
+  private volatile long[][] lastCounters = new long[0][];
+  private volatile int size = 0;
+
+  /**
+   * Finds the slot of an account.
+   *
+   * @param id the account ID
+   * @return the slot, or -1 if the account isn't registered
+   */
+  public int slotOf(String id) {
+    var t = table;
+    int mask = t.length - 1;
+    for (int i = hash(id) & mask;; i = (i + 1) & mask) {
+      int entry = (int) INTS.getAcquire(t, i);
+      if (entry == 0) {
+        return -1;
+      }
+      if (id.equals(getId(entry - 1))) {
+        return entry - 1;
+      }
+    }
+  }
+
+  /**
+   * Registers an account, or updates its configuration if it is already registered.
+   *
+   * @param id the account ID
+   * @param options the options giving the algorithm, digits and time step of the account
+   * @param keyRef the reference to the account's key
+   * @return the slot of the account
+   */
+  public int register(String id, Options options, int keyRef) {
+    return register(id, options.getAlgorithm(), options.getDigits(), options.getTimestep(),
+        keyRef);
+  }
+
+  /**
+   * Registers an account, or updates its configuration if it is already registered.
+   *
+   * @param id the account ID
+   * @param algorithm the HMAC algorithm, as used by {@link Options#getAlgorithm()}
+   * @param digits the number of digits of the account's codes
+   * @param timestep the time step of the account, in seconds
+   * @param keyRef the reference to the account's key
+   * @return the slot of the account
+   */
+  public synchronized int register(String id, String algorithm, int digits, int timestep,
+      int keyRef) {
+    int index = ALGORITHMS.indexOf(algorithm);
+    if (index < 0) {
+      throw new IllegalArgumentException("Unsupported algorithm: " + algorithm);
+    }
+    if (digits < 1 || digits > OtpKernels.MAX_DIGITS || timestep <= 0) {
+      throw new IllegalArgumentException(
+          "Invalid digits or time step: " + digits + ", " + timestep);
+    }
+    return register(id, config(index, digits, timestep), keyRef, 0);
+  }
+
+  private int register(String id, long config, int keyRef, long lastCounter) {
+    int slot = slotOf(id);
+    boolean added = slot < 0;
+    if (added) {
+      slot = size;
+      if ((slot & PAGE_MASK) == 0 && slot >> PAGE_BITS == ids.length) {
+        addPage();
+      }
+      ids[slot >> PAGE_BITS][slot & PAGE_MASK] = id;
+    }
+    int page = slot >> PAGE_BITS;
+    int index = slot & PAGE_MASK;
+    LONGS.setRelease(configs[page], index, config);
+    if (added) {
+      LONGS.setRelease(lastCounters[page], index, lastCounter);
+    }
+    // the key reference is released last, so readers that see it also see the config it goes with
+    INTS.setRelease(keyRefs[page], index, keyRef);
+    if (added) {
+      // the slot is findable before the size is published, so every slot below size is found
+      if ((slot + 1) * 4L > table.length * 3L) {
+        rehash(table.length * 2, slot + 1);
+      } else {
+        insert(table, slot);
+      }
+      size = slot + 1;
+    }
+    return slot;
+  }
+
+  private static long config(int algorithm, int digits, int timestep) {
+    return (long) timestep << 32 | (digits & 0xFF) << 8 | (algorithm & 0xFF);
+  }
+
+  private void addPage() {
+    int pages = ids.length + 1;
+    var newIds = Arrays.copyOf(ids, pages);
+    newIds[pages - 1] = new String[PAGE_SIZE];
+    var newConfigs = Arrays.copyOf(configs, pages);
+    newConfigs[pages - 1] = new long[PAGE_SIZE];
+    var newKeyRefs = Arrays.copyOf(keyRefs, pages);
+    newKeyRefs[pages - 1] = new int[PAGE_SIZE];
+    var newLastCounters = Arrays.copyOf(lastCounters, pages);
+    newLastCounters[pages - 1] = new long[PAGE_SIZE];
+    ids = newIds;
+    configs = newConfigs;
+    keyRefs = newKeyRefs;
+    lastCounters = newLastCounters;
+  }
+
+  private void rehash(int capacity, int count) {
+    var newTable = new int[capacity];
+    for (int slot = 0; slot < count; slot++) {
+      insert(newTable, slot);
+    }
+    table = newTable;
+  }
+
+  private void insert(int[] t, int slot) {
+    int mask = t.length - 1;
+    int i = hash(getId(slot)) & mask;
+    while (t[i] != 0) {
+      i = (i + 1) & mask;
+    }
+    INTS.setRelease(t, i, slot + 1);
+  }
+
+  private static int hash(String id) {
+    int h = id.hashCode() * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * @return the number of registered accounts; slots range from 0 to this number, exclusive
+   */
+  public int size() {
+    return size;
+  }
+
+  public String getId(int slot) {
+    return ids[slot >> PAGE_BITS][slot & PAGE_MASK];
+  }
+
+  public String getAlgorithm(int slot) {
+    return configAlgorithm(getConfig(slot));
+  }
+
+  public int getDigits(int slot) {
+    return configDigits(getConfig(slot));
+  }
+
+  public int getTimestep(int slot) {
+    return configTimestep(getConfig(slot));
+  }
+
+  /**
+   * @param slot the slot of the account
+   * @return the algorithm, digits and time step of the account, packed in a single word
+   */
+  public long getConfig(int slot) {
+    return (long) LONGS.getAcquire(configs[slot >> PAGE_BITS], slot & PAGE_MASK);
+  }
+
+  public static String configAlgorithm(long config) {
+    return ALGORITHMS.get((int) config & 0xFF);
+  }
+
+  public static int configDigits(long config) {
+    return (int) (config >>> 8) & 0xFF;
+  }
+
+  public static int configTimestep(long config) {
+    return (int) (config >>> 32);
+  }
+
+  public int getKeyRef(int slot) {
+    return (int) INTS.getAcquire(keyRefs[slot >> PAGE_BITS], slot & PAGE_MASK);
+  }
+
+  /**
+   * Replaces the key reference of an account.
+   *
+   * @param slot the slot of the account
+   * @param keyRef the new key reference
+   */
+  public void setKeyRef(int slot, int keyRef) {
+    INTS.setRelease(keyRefs[slot >> PAGE_BITS], slot & PAGE_MASK, keyRef);
+  }
+
+  /**
+   * @return the last counter accepted for the account, or 0 if none was
+   */
+  public long getLastCounter(int slot) {
+    return (long) LONGS.getAcquire(lastCounters[slot >> PAGE_BITS], slot & PAGE_MASK);
+  }
+
+  /**
+   * Records that a code was accepted for the given counter, unless a code for the same or a later
+   * counter was already accepted, which makes this usable to reject replayed codes.
+   *
+   * @param slot the slot of the account
+   * @param counter the counter of the accepted code
+   * @return true if the counter was newer than the last accepted one
+   */
+  public boolean advanceCounter(int slot, long counter) {
+    var page = lastCounters[slot >> PAGE_BITS];
+    int index = slot & PAGE_MASK;
+    long last;
+    do {
+      last = (long) LONGS.getAcquire(page, index);
+      if (counter <= last) {
+        return false;
+      }
+    } while (!LONGS.compareAndSet(page, index, last, counter));
+    return true;
+  }
+
+  /**
+   * Writes all the accounts, with their configuration and state, but not their key references, to
+   * a file.
+   *
+   * @param file the file to write
+   */
+  public synchronized void save(Path file) throws IOException {
+    var tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+      out.writeInt(SNAPSHOT_MAGIC);
+      out.writeInt(size);
+      for (int slot = 0; slot < size; slot++) {
+        long config = getConfig(slot);
+        out.writeUTF(getId(slot));
+        out.writeByte((int) config & 0xFF);
+        out.writeByte(configDigits(config));
+        out.writeInt(configTimestep(config));
+        out.writeLong(getLastCounter(slot));
+      }
+    }
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Reads a registry from a file written by {@link #save(Path)}. Accounts keep their slots, but
+   * have no key: their key reference is {@link KeyRotation#NO_KEY} until the key is loaded again,
+   * and attached with {@link #setKeyRef(int, int)}.
+   *
+   * @param file the file to read
+   * @return the registry
+   */
+  public static AccountRegistry load(Path file) throws IOException {
+    try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      if (in.readInt() != SNAPSHOT_MAGIC) {
+        throw new IOException("Not an account registry snapshot: " + file);
+      }
+      int count = in.readInt();
+      var registry = new AccountRegistry();
+      synchronized (registry) {
+        int capacity = Integer.highestOneBit(Math.max(16, count * 2 - 1)) << 1;
+        registry.table = new int[capacity];
+        for (int i = 0; i < count; i++) {
+          var id = in.readUTF();
+          long config = config(in.readByte(), in.readByte(), in.readInt());
+          registry.register(id, config, KeyRotation.NO_KEY, in.readLong());
+        }
+      }
+      return registry;
+    }
+  }
+}
@@ -0,0 +1,287 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records verification outcomes to a file, without making verification wait for I/O. Events are
+ * published into a bounded multi-producer ring buffer of preallocated primitive arrays, so
+ * recording one allocates nothing, and a single writer thread drains it in batches to a file of
+ * newline delimited JSON objects, such as:
+ *
+ * <pre>
+ * {"slot":42,"step":56666666,"outcome":"ACCEPTED","time":1700000000}
+ * </pre>
+ *
+ * <p>
+ * The slot is the account's slot in its {@link AccountRegistry}, and the step the time step of the
+ * matched code, or of the verification time if none matched. When the file reaches its maximum
+ * size, it is renamed with a {@code .1} suffix, older files are shifted up to the maximum number
+ * of files kept, and a new file is started. When the buffer is full, events are either dropped
+ * and counted, or the verifying thread waits for room, depending on the {@link FullPolicy}.
+ */
+public class AuditLog implements AutoCloseable {
+
+  /**
+   * The outcome of a verification.
+   */
+  public enum Outcome {
+    ACCEPTED, REJECTED, REPLAYED
+  }
+
+  /**
+   * What to do with an event when the buffer is full.
+   */
+  public enum FullPolicy {
+    DROP, BLOCK
+  }
+
+  private static final Outcome[] OUTCOMES = Outcome.values();
+  private static final int BATCH_SIZE = 256;
+  private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final VarHandle SEQUENCES = MethodHandles.arrayElementVarHandle(long[].class);
+  private static final VarHandle TAIL;
+
+  static {
+    try {
+      TAIL = MethodHandles.lookup().findVarHandle(AuditLog.class, "tail", long.class);
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private final Path file;
+  private final long maxFileBytes;
+  private final int maxFiles;
+  private final FullPolicy policy;
+
+  // each entry holds the sequence number it is ready for: i to be written for the event with the
+  // same number, i + 1 to be read, i + capacity to be written again on the next turn
+  private final int mask;
+  private final long[] sequences;
+  private final int[] slots;
+  private final long[] steps;
+  private final byte[] outcomes;
+  private final long[] times;
+  @SuppressWarnings("unused") // accessed through TAIL
+  private volatile long tail = 0;
+  private long head = 0; // only used by the writer thread
+
+  private final LongAdder dropped = new LongAdder();
+  private final Thread writerThread;
+  private volatile boolean closed = false;
+  private volatile IOException failure;
+  private Writer writer;
+  private long fileBytes;
+
+  /**
+   * Opens an audit log, appending to the given file, and starts its writer thread.
+   *
+   * @param file the file to write
+   * @param capacity the number of events the buffer can hold, rounded up to a power of two
+   * @param maxFileBytes the size at which the file is rotated
+   * @param maxFiles the number of rotated files kept
+   * @param policy what to do when the buffer is full
+   */
+  public AuditLog(Path file, int capacity, long maxFileBytes, int maxFiles, FullPolicy policy)
+      throws IOException {
+    if (capacity <= 0 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("Capacity must be between 1 and 2^30");
+    }
+    this.file = file;
+    this.maxFileBytes = maxFileBytes;
+    this.maxFiles = maxFiles;
+    this.policy = policy;
+    int size = Integer.highestOneBit(Math.max(1, capacity * 2 - 1));
+    this.mask = size - 1;
+    this.sequences = new long[size];
+    for (int i = 0; i < size; i++) {
+      sequences[i] = i;
+    }
+    this.slots = new int[size];
+    this.steps = new long[size];
+    this.outcomes = new byte[size];
+    this.times = new long[size];
+    openFile();
+    writerThread = new Thread(this::drain, "totp-audit-writer");
+    writerThread.setDaemon(true);
+    writerThread.start();
+  }
+
+  /**
+   * Records a verification outcome.
+   *
+   * @param slot the slot of the account
+   * @param step the time step of the code
+   * @param outcome the outcome
+   * @param epochSeconds the time of the verification
+   * @return false if the event was dropped, because the buffer was full or the log closed
+   */
+  public boolean record(int slot, long step, Outcome outcome, long epochSeconds) {
+    long pos = (long) TAIL.getVolatile(this);
+    while (!closed) {
+      int index = (int) pos & mask;
+      long diff = (long) SEQUENCES.getAcquire(sequences, index) - pos;
+      if (diff == 0) {
+        if (TAIL.compareAndSet(this, pos, pos + 1)) {
+          slots[index] = slot;
+          steps[index] = step;
+          outcomes[index] = (byte) outcome.ordinal();
+          times[index] = epochSeconds;
+          SEQUENCES.setRelease(sequences, index, pos + 1);
+          return true;
+        }
+        pos = (long) TAIL.getVolatile(this);
+      } else if (diff < 0) {
+        // the entry from the previous turn wasn't read yet, so the buffer is full
+        if (policy == FullPolicy.DROP) {
+          break;
+        }
+        // the writer may be idling, so wake it rather than wait for it
+        LockSupport.unpark(writerThread);
+        LockSupport.parkNanos(IDLE_NANOS / 10);
+        pos = (long) TAIL.getVolatile(this);
+      } else {
+        pos = (long) TAIL.getVolatile(this);
+      }
+    }
+    dropped.increment();
+    return false;
+  }
+
+  /**
+   * @return the number of events dropped so far
+   */
+  public long getDropped() {
+    return dropped.sum();
+  }
+
+  private void drain() {
+    var line = new StringBuilder(96);
+    while (true) {
+      // read closed first, so no event recorded before closing is missed by the last pass
+      boolean last = closed;
+      int batch = 0;
+      while (batch < BATCH_SIZE) {
+        int index = (int) head & mask;
+        if ((long) SEQUENCES.getAcquire(sequences, index) != head + 1) {
+          break;
+        }
+        line.setLength(0);
+        line.append("{\"slot\":").append(slots[index]).append(",\"step\":").append(steps[index])
+            .append(",\"outcome\":\"").append(OUTCOMES[outcomes[index]]).append("\",\"time\":")
+            .append(times[index]).append("}\n");
+        SEQUENCES.setRelease(sequences, index, head + mask + 1);
+        head++;
+        batch++;
+        write(line);
+      }
+      if (batch > 0) {
+        continue;
+      }
+      flush();
+      // events claimed before closing are published shortly, so wait for them
+      if (last && head == (long) TAIL.getVolatile(this)) {
+        return;
+      }
+      LockSupport.parkNanos(last ? 0 : IDLE_NANOS);
+    }
+  }
+
+  private void write(CharSequence line) {
+    if (failure != null) {
+      dropped.increment();
+      return;
+    }
+    try {
+      if (fileBytes + line.length() > maxFileBytes && fileBytes > 0) {
+        writer.close();
+        rotate();
+        openFile();
+      }
+      writer.append(line);
+      fileBytes += line.length();
+    } catch (IOException e) {
+      failure = e;
+      dropped.increment();
+    }
+  }
+
+  private void flush() {
+    if (failure == null) {
+      try {
+        writer.flush();
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+  }
+
+  private void rotate() throws IOException {
+    Files.deleteIfExists(rotated(maxFiles));
+    for (int i = maxFiles - 1; i >= 1; i--) {
+      if (Files.exists(rotated(i))) {
+        Files.move(rotated(i), rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    if (maxFiles > 0) {
+      Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+    } else {
+      Files.delete(file);
+    }
+  }
+
+  private Path rotated(int i) {
+    return file.resolveSibling(file.getFileName() + "." + i);
+  }
+
+  private void openFile() throws IOException {
+    writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+        StandardOpenOption.APPEND);
+    fileBytes = Files.size(file);
+  }
+
+  /**
+   * Stops accepting events, writes the ones already recorded, and closes the file. Events recorded
+   * concurrently with closing may be lost.
+   *
+   * @throws IOException if writing the file failed at any point
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    try {
+      writerThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    writer.close();
+    if (failure != null) {
+      throw failure;
+    }
+  }
+}
@@ -41,6 +41,9 @@ public class Base32 {
         decodedAsNumber = decodedAsNumber.shiftLeft(5).or(BigInteger.valueOf(nextBits));
       }
     }
+    if (numEncodedChars == 0) {
+      return new byte[0];
+    }
     // all the chars, except maybe the last one, since the last 8 byte boundary encode 5-bits each
     // the last char encodes however many more bits it takes to get to the next full byte (8-bits)
     var numBitsInLastChar = 8 - 5 * (numEncodedChars - 1) % 8;
@@ -68,4 +71,79 @@ public class Base32 {
     return result;
   }
 
+  /**
+   * Decodes like {@link #decode(String)}, but from the ASCII bytes of the encoded string, and
+   * without any intermediate copy, so a secret decoded this way is only ever held in the given
+   * array and the returned one, which the caller can both wipe.
+   *
+   * @param encoded the ASCII bytes of the encoded string
+   * @return the decoded bytes
+   */
+  public static byte[] decode(byte[] encoded) {
+    int numEncodedChars = 0;
+    for (byte b : encoded) {
+      if (bitValue(b) >= 0) {
+        numEncodedChars++;
+      }
+    }
+    if (numEncodedChars == 0) {
+      return new byte[0];
+    }
+    // the same length as decode(String), which pads a last char that doesn't complete a byte
+    var decoded = new byte[5 * (numEncodedChars - 1) / 8 + 1];
+    int buffer = 0;
+    int numBitsInBuffer = 0;
+    int numBytes = 0;
+    for (byte b : encoded) {
+      int nextBits = bitValue(b);
+      if (nextBits >= 0) {
+        buffer = (buffer << 5) | nextBits;
+        numBitsInBuffer += 5;
+        if (numBitsInBuffer >= 8) {
+          numBitsInBuffer -= 8;
+          decoded[numBytes++] = (byte) (buffer >>> numBitsInBuffer);
+        }
+      }
+    }
+    if (numBytes < decoded.length) {
+      decoded[numBytes] = (byte) (buffer << (8 - numBitsInBuffer));
+    }
+    return decoded;
+  }
+
+  // the 5-bit value of an ASCII char, either case, or -1 if it isn't a base32 digit
+  private static int bitValue(byte b) {
+    if (b >= 'a' && b <= 'z') {
+      return b - 'a';
+    }
+    if (b >= 'A' && b <= 'Z') {
+      return b - 'A';
+    }
+    if (b >= '2' && b <= '7') {
+      return b - '2' + 26;
+    }
+    return -1;
+  }
+
+  public static String encode(byte[] decoded) {
+    var encoded = new StringBuilder((decoded.length * 8 + 4) / 5);
+    int buffer = 0;
+    int numBitsInBuffer = 0;
+    // emit a char for each complete group of 5 bits, most significant first
+    for (byte b : decoded) {
+      buffer = (buffer << 8) | (b & 0xFF);
+      numBitsInBuffer += 8;
+      while (numBitsInBuffer >= 5) {
+        numBitsInBuffer -= 5;
+        encoded.append(base32Chars.charAt((buffer >>> numBitsInBuffer) & 0x1F));
+      }
+    }
+    // the last char encodes the remaining bits, padded with zeros on the right; no '=' padding is
+    // added, since decode ignores it anyway
+    if (numBitsInBuffer > 0) {
+      encoded.append(base32Chars.charAt((buffer << (5 - numBitsInBuffer)) & 0x1F));
+    }
+    return encoded.toString();
+  }
+
 }
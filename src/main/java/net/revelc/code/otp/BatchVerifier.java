@@ -0,0 +1,208 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import javax.crypto.Mac;
+
+/**
+ * Verifies large files of {@code account,key,code,timestamp} records, where the timestamp is in
+ * seconds since the epoch, and each code is checked at its own timestamp. The file is memory-mapped
+ * and split into chunks at line boundaries, which are verified by parallel workers. The results are
+ * written as {@code account,timestamp,VALID|INVALID|MALFORMED} lines, in the same order as the
+ * input, with a bounded number of chunks in flight. Files are read, and results written, as UTF-8.
+ *
+ * <p>
+ * A record without exactly four fields is reported as malformed with its first field as the
+ * account, and its last field as the timestamp if it is a number, or an empty timestamp otherwise.
+ */
+public class BatchVerifier {
+
+  private static final int CHUNK_SIZE = 4 << 20;
+  private static final int BOUNDARY_WINDOW = 64 << 10;
+  private static final Pattern TIMESTAMP = Pattern.compile("-?\\d+");
+
+  private final Otp otp;
+  private final int threads;
+
+  /**
+   * @param options the options giving the algorithm, provider, digits and time step
+   * @param threads the number of parallel workers
+   * @throws IllegalArgumentException if the algorithm isn't available from the provider
+   */
+  public BatchVerifier(Options options, int threads) {
+    if (threads <= 0) {
+      throw new IllegalArgumentException("Number of threads must be strictly positive");
+    }
+    this.otp = new Otp(options);
+    this.threads = threads;
+    // fails now if the algorithm or provider can't be used, rather than on every record
+    otp.newMac("AA");
+  }
+
+  /**
+   * Entry point for the {@code verify} subcommand of {@link Otp#main(String[])}; each non-option
+   * argument is an input file.
+   */
+  static void run(Options options) {
+    var out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+    var verifier = new BatchVerifier(options, Runtime.getRuntime().availableProcessors());
+    try {
+      for (String file : options.getKeys()) {
+        verifier.verify(Path.of(file), out);
+      }
+      out.flush();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Verifies all the records of a file.
+   *
+   * @param input the file to verify
+   * @param out where to write the results
+   */
+  public void verify(Path input, Writer out) throws IOException {
+    ExecutorService workers = Executors.newFixedThreadPool(threads);
+    try (var channel = FileChannel.open(input, StandardOpenOption.READ)) {
+      var inFlight = new ArrayDeque<Future<String>>();
+      long size = channel.size();
+      long start = 0;
+      while (start < size) {
+        long end = nextBoundary(channel, Math.min(size, start + CHUNK_SIZE));
+        var chunk = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        inFlight.add(workers.submit(() -> verifyChunk(chunk)));
+        // write results in order, and keep memory bounded, by waiting for the oldest chunk
+        if (inFlight.size() >= threads * 2) {
+          out.write(await(inFlight.remove()));
+        }
+        start = end;
+      }
+      while (!inFlight.isEmpty()) {
+        out.write(await(inFlight.remove()));
+      }
+    } finally {
+      workers.shutdownNow();
+    }
+  }
+
+  private static String await(Future<String> result) throws IOException {
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while verifying", e);
+    } catch (ExecutionException e) {
+      throw new IOException("Unable to verify chunk", e.getCause());
+    }
+  }
+
+  // returns the position just after the first newline at or after pos, or the end of the file
+  private static long nextBoundary(FileChannel channel, long pos) throws IOException {
+    long size = channel.size();
+    while (pos < size) {
+      long len = Math.min(BOUNDARY_WINDOW, size - pos);
+      var window = channel.map(FileChannel.MapMode.READ_ONLY, pos, len);
+      for (int i = 0; i < len; i++) {
+        if (window.get(i) == '\n') {
+          return pos + i + 1;
+        }
+      }
+      pos += len;
+    }
+    return size;
+  }
+
+  private String verifyChunk(MappedByteBuffer chunk) {
+    var results = new StringBuilder(chunk.limit() / 2);
+    // chunks end at line boundaries, and a newline byte is never part of a multi-byte UTF-8
+    // sequence, so each line can be decoded on its own
+    var line = new byte[128];
+    int length = 0;
+    for (int i = 0; i < chunk.limit(); i++) {
+      byte b = chunk.get(i);
+      if (b == '\n') {
+        verifyRecord(new String(line, 0, length, StandardCharsets.UTF_8), results);
+        length = 0;
+      } else if (b != '\r') {
+        if (length == line.length) {
+          line = Arrays.copyOf(line, length * 2);
+        }
+        line[length++] = b;
+      }
+    }
+    verifyRecord(new String(line, 0, length, StandardCharsets.UTF_8), results);
+    return results.toString();
+  }
+
+  private void verifyRecord(String line, StringBuilder results) {
+    var record = line.trim();
+    if (record.isEmpty() || record.startsWith("#")) {
+      return;
+    }
+    var fields = record.split(",", -1);
+    if (fields.length != 4) {
+      // records end with their timestamp, so keep the last field if it looks like one
+      var last = fields[fields.length - 1].trim();
+      var timestamp = fields.length > 1 && TIMESTAMP.matcher(last).matches() ? last : "";
+      results.append(fields[0].trim()).append(',').append(timestamp).append(",MALFORMED\n");
+      return;
+    }
+    var account = fields[0].trim();
+    var timestamp = fields[3].trim();
+    results.append(account).append(',').append(timestamp).append(',')
+        .append(outcome(fields[1].trim(), fields[2].trim(), timestamp)).append('\n');
+  }
+
+  private String outcome(String key, String code, String timestamp) {
+    long counter;
+    try {
+      counter = Long.parseLong(timestamp) / otp.options.getTimestep();
+    } catch (NumberFormatException e) {
+      return "MALFORMED";
+    }
+    if (counter < 0) {
+      return "MALFORMED";
+    }
+    Mac mac;
+    try {
+      mac = otp.newMac(key);
+    } catch (IllegalArgumentException e) {
+      // a key without any base32 digits; the algorithm and provider were checked beforehand, so
+      // they can't be the cause
+      return "MALFORMED";
+    }
+    return otp.generateOtp(mac, counter).equals(code) ? "VALID" : "INVALID";
+  }
+
+}
@@ -0,0 +1,223 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Mac;
+
+/**
+ * A table of precomputed codes, for validators that must not hold the keys. The table covers a
+ * range of consecutive time steps for a set of accounts, and is stored in a compact binary file
+ * that is memory-mapped when read, so checking a code is a lookup rather than an HMAC.
+ *
+ * <p>
+ * The file starts with a header holding the algorithm, number of digits, time step, first counter,
+ * number of steps and number of accounts. It is followed by one column of {@code int} codes per
+ * time step, with one entry per account, and then by the account names.
+ */
+public class CodeTable {
+
+  private static final int MAGIC = 0x54435431; // TCT1
+  private static final int HEADER_SIZE = 4 + 1 + 1 + 2 + 4 + 8 + 4 + 4;
+  private static final List<String> ALGORITHMS = List.of("HmacSHA1", "HmacSHA256", "HmacSHA512");
+
+  private final ByteBuffer codes;
+  private final Map<String, Integer> accountIndex;
+  private final String algorithm;
+  private final int digits;
+  private final int timestep;
+  private final long startCounter;
+  private final int steps;
+  private final int accounts;
+
+  private CodeTable(ByteBuffer map) throws IOException {
+    if (map.limit() < HEADER_SIZE || map.getInt(0) != MAGIC) {
+      throw new IOException("Not a code table file");
+    }
+    if (map.get(4) < 0 || map.get(4) >= ALGORITHMS.size()) {
+      throw new IOException("Unknown algorithm in code table file: " + map.get(4));
+    }
+    this.algorithm = ALGORITHMS.get(map.get(4));
+    this.digits = map.get(5);
+    this.timestep = map.getInt(8);
+    this.startCounter = map.getLong(12);
+    this.steps = map.getInt(20);
+    this.accounts = map.getInt(24);
+    if (digits <= 0 || digits > OtpKernels.MAX_DIGITS || timestep <= 0 || startCounter < 0
+        || steps <= 0 || accounts < 0) {
+      throw new IOException("Invalid header in code table file");
+    }
+    long codesSize = 4L * steps * accounts;
+    if (HEADER_SIZE + codesSize > map.limit()) {
+      throw new IOException("Truncated code table file");
+    }
+    this.codes = map.duplicate().position(HEADER_SIZE).limit(HEADER_SIZE + (int) codesSize)
+        .slice();
+    var names = map.duplicate().position(HEADER_SIZE + (int) codesSize);
+    this.accountIndex = new HashMap<>(accounts * 2);
+    try {
+      for (int i = 0; i < accounts; i++) {
+        var name = new byte[names.getShort() & 0xffff];
+        names.get(name);
+        accountIndex.put(new String(name, StandardCharsets.UTF_8), i);
+      }
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated code table file", e);
+    }
+  }
+
+  /**
+   * Computes the codes of the given accounts for a range of time steps, and writes them to a file.
+   *
+   * @param options the options giving the algorithm, number of digits and time step
+   * @param accountKeys the base32 encoded key of each account
+   * @param startCounter the first time step of the table
+   * @param steps the number of time steps in the table
+   * @param file the file to write
+   */
+  public static void export(Options options, Map<String, String> accountKeys, long startCounter,
+      int steps, Path file) throws IOException {
+    if (steps <= 0 || startCounter < 0) {
+      throw new IllegalArgumentException("Invalid range of steps");
+    }
+    if (HEADER_SIZE + 4L * steps * accountKeys.size() > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Code table would be too large to be mapped");
+    }
+    var otp = new Otp(options);
+    var names = new ArrayList<String>(accountKeys.keySet());
+    // one context per account, initialized once, rather than one per code
+    var macs = new Mac[names.size()];
+    for (int i = 0; i < macs.length; i++) {
+      macs[i] = otp.newMac(accountKeys.get(names.get(i)));
+    }
+    var message = new byte[OtpKernels.MESSAGE_LENGTH];
+    int digits = options.getDigits();
+    try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+      out.writeInt(MAGIC);
+      out.writeByte(ALGORITHMS.indexOf(options.getAlgorithm()));
+      out.writeByte(options.getDigits());
+      out.writeShort(0);
+      out.writeInt(options.getTimestep());
+      out.writeLong(startCounter);
+      out.writeInt(steps);
+      out.writeInt(names.size());
+      for (long counter = startCounter; counter < startCounter + steps; counter++) {
+        OtpKernels.writeCounter(message, counter);
+        for (Mac mac : macs) {
+          out.writeInt(OtpKernels.otp(mac.doFinal(message), digits));
+        }
+      }
+      for (String name : names) {
+        var bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xffff) {
+          throw new IllegalArgumentException("Account name too long: " + name);
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+      }
+    }
+  }
+
+  /**
+   * Memory-maps a code table file.
+   *
+   * @param file the file written by {@link #export(Options, Map, long, int, Path)}
+   * @return the table
+   */
+  public static CodeTable open(Path file) throws IOException {
+    try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Code table file is too large to be mapped: " + file);
+      }
+      return new CodeTable(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  /**
+   * Checks whether a code is valid for an account at the given time.
+   *
+   * @param account the account
+   * @param code the code to check
+   * @param time the time at which the code was provided
+   * @return false if the code doesn't match, or if the account or time isn't covered by the table
+   */
+  public boolean isValid(String account, String code, Instant time) {
+    var index = accountIndex.get(account);
+    long step = time.getEpochSecond() / timestep - startCounter;
+    if (index == null || step < 0 || step >= steps || code == null || code.length() != digits) {
+      return false;
+    }
+    // a long, as ten digits can exceed an int, and must not wrap around onto a valid code
+    long value = 0;
+    for (int i = 0; i < digits; i++) {
+      char c = code.charAt(i);
+      if (c < '0' || c > '9') {
+        return false;
+      }
+      value = value * 10 + (c - '0');
+    }
+    return codes.getInt((int) (4 * (step * accounts + index))) == value;
+  }
+
+  /**
+   * @return the algorithm the codes were computed with
+   */
+  public String getAlgorithm() {
+    return algorithm;
+  }
+
+  /**
+   * @return the number of digits of the codes
+   */
+  public int getDigits() {
+    return digits;
+  }
+
+  /**
+   * @return the time step, in seconds
+   */
+  public int getTimestep() {
+    return timestep;
+  }
+
+  /**
+   * @return the first time step covered by the table
+   */
+  public long getStartCounter() {
+    return startCounter;
+  }
+
+  /**
+   * @return the number of time steps covered by the table
+   */
+  public int getSteps() {
+    return steps;
+  }
+}
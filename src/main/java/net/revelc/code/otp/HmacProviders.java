@@ -0,0 +1,273 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Chooses which JCA provider creates the {@link Mac} instances for each HMAC algorithm. The first
+ * time an algorithm is used, every installed provider of it is timed over a short warm-up and
+ * measurement loop, and the fastest one is pinned for the life of the JVM.
+ *
+ * <p>
+ * The benchmark runs lazily, inside the first call that needs a {@link Mac} for the algorithm,
+ * which is usually the first code generated or verified with it, and it adds some milliseconds to
+ * that call. Applications that care about the latency of that call can call
+ * {@link #select(String)} while starting up instead.
+ *
+ * <p>
+ * The choice can be configured with the {@value #PROVIDER_PROPERTY} system property, or with the
+ * {@code --provider} option, which skip the benchmark. If the {@value #CACHE_PROPERTY} system
+ * property names a file, decisions are read from it, and written to it, so the benchmark only
+ * runs again when the JVM or its providers change. The cache is optional: if it can't be written,
+ * a warning is logged, and the selection is still used.
+ */
+public class HmacProviders {
+
+  public static final String PROVIDER_PROPERTY = "totp4j.hmac.provider";
+  public static final String CACHE_PROPERTY = "totp4j.hmac.providerCache";
+
+  private static final int WARMUP_ITERATIONS = 2_000;
+  private static final int MEASURED_ITERATIONS = 5_000;
+
+  private static final System.Logger LOG = System.getLogger(HmacProviders.class.getName());
+
+  private static final Map<String, Selection> selections = new ConcurrentHashMap<>();
+
+  private HmacProviders() {}
+
+  /**
+   * Creates a {@link Mac} from the provider selected for the algorithm.
+   *
+   * @param algorithm the HMAC algorithm
+   * @return a new, uninitialized {@link Mac}
+   * @throws IllegalArgumentException if the configured provider doesn't exist, or doesn't
+   *         provide the algorithm
+   */
+  public static Mac getMac(String algorithm) throws NoSuchAlgorithmException {
+    return Mac.getInstance(algorithm, select(algorithm).provider);
+  }
+
+  /**
+   * Returns the provider selected for an algorithm, benchmarking the installed providers if no
+   * decision was made yet.
+   *
+   * @param algorithm the HMAC algorithm
+   * @return the selection, with the measurements it was based on
+   * @throws IllegalArgumentException if the configured provider doesn't exist, or doesn't
+   *         provide the algorithm
+   */
+  public static Selection select(String algorithm) throws NoSuchAlgorithmException {
+    var selection = selections.get(algorithm);
+    if (selection == null) {
+      // concurrent first uses may both benchmark, but they all end up with the same selection
+      var decided = decide(algorithm);
+      selection = selections.putIfAbsent(algorithm, decided);
+      if (selection == null) {
+        selection = decided;
+      }
+    }
+    return selection;
+  }
+
+  /**
+   * Pins the provider to use for an algorithm, replacing any previous selection.
+   *
+   * @param algorithm the HMAC algorithm
+   * @param providerName the name of an installed provider
+   * @throws IllegalArgumentException if the provider doesn't exist, or doesn't provide the
+   *         algorithm
+   */
+  public static void pin(String algorithm, String providerName) {
+    selections.put(algorithm, configured(algorithm, providerName));
+  }
+
+  // makes a new selection, ignoring any made before; package-private for testing
+  static Selection decide(String algorithm) throws NoSuchAlgorithmException {
+    var configured = System.getProperty(PROVIDER_PROPERTY);
+    if (configured != null && !configured.isBlank()) {
+      return configured(algorithm, configured);
+    }
+    var providers = Security.getProviders("Mac." + algorithm);
+    if (providers == null) {
+      throw new NoSuchAlgorithmException("No provider for " + algorithm);
+    }
+    var fingerprint = System.getProperty("java.version") + ";" + Arrays.stream(providers)
+        .map(p -> p.getName() + "/" + p.getVersionStr()).collect(Collectors.joining(","));
+    var cached = readCache(algorithm, fingerprint);
+    if (cached != null) {
+      return cached;
+    }
+    Map<String, Double> timings = new LinkedHashMap<>();
+    Provider fastest = null;
+    for (Provider provider : providers) {
+      double nanos = benchmark(algorithm, provider);
+      timings.put(provider.getName(), nanos);
+      if (fastest == null || nanos < timings.get(fastest.getName())) {
+        fastest = provider;
+      }
+    }
+    var selection = new Selection(algorithm, fastest, timings, false);
+    writeCache(selection, fingerprint);
+    return selection;
+  }
+
+  private static Selection configured(String algorithm, String providerName) {
+    var provider = Security.getProvider(providerName);
+    if (provider == null) {
+      throw new IllegalArgumentException("Unknown provider: " + providerName);
+    }
+    if (provider.getService("Mac", algorithm) == null) {
+      throw new IllegalArgumentException(algorithm + " not available from " + providerName);
+    }
+    return new Selection(algorithm, provider, Map.of(), false);
+  }
+
+  private static double benchmark(String algorithm, Provider provider) {
+    try {
+      var mac = Mac.getInstance(algorithm, provider);
+      var key = new byte[SecretGenerator.recommendedLength(algorithm)];
+      mac.init(new SecretKeySpec(key, algorithm));
+      var message = new byte[8];
+      var out = new byte[mac.getMacLength()];
+      for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+        message[7] = (byte) i;
+        mac.update(message);
+        mac.doFinal(out, 0);
+      }
+      long start = System.nanoTime();
+      for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+        message[7] = (byte) i;
+        mac.update(message);
+        mac.doFinal(out, 0);
+      }
+      return (System.nanoTime() - start) / (double) MEASURED_ITERATIONS;
+    } catch (GeneralSecurityException | RuntimeException e) {
+      // a provider that advertises the algorithm but can't use it is never selected
+      return Double.POSITIVE_INFINITY;
+    }
+  }
+
+  private static Selection readCache(String algorithm, String fingerprint) {
+    var file = cacheFile();
+    if (file == null || !Files.isReadable(file)) {
+      return null;
+    }
+    var cache = new Properties();
+    try (var in = Files.newInputStream(file)) {
+      cache.load(in);
+    } catch (IOException e) {
+      return null;
+    }
+    if (!fingerprint.equals(cache.getProperty(algorithm + ".fingerprint"))) {
+      return null;
+    }
+    var provider = Security.getProvider(cache.getProperty(algorithm + ".provider", ""));
+    if (provider == null || provider.getService("Mac", algorithm) == null) {
+      return null;
+    }
+    return new Selection(algorithm, provider, Map.of(), true);
+  }
+
+  private static synchronized void writeCache(Selection selection, String fingerprint) {
+    var file = cacheFile();
+    if (file == null) {
+      return;
+    }
+    var cache = new Properties();
+    if (Files.isReadable(file)) {
+      try (var in = Files.newInputStream(file)) {
+        cache.load(in);
+      } catch (IOException e) {
+        cache.clear();
+      }
+    }
+    cache.setProperty(selection.algorithm + ".provider", selection.getProviderName());
+    cache.setProperty(selection.algorithm + ".fingerprint", fingerprint);
+    try (var out = Files.newOutputStream(file)) {
+      cache.store(out, "HMAC provider selections");
+    } catch (IOException e) {
+      // the cache only saves benchmarking in later runs, so this one goes on without it
+      LOG.log(System.Logger.Level.WARNING, "Unable to write HMAC provider cache: " + file, e);
+    }
+  }
+
+  private static Path cacheFile() {
+    var name = System.getProperty(CACHE_PROPERTY);
+    return name == null || name.isBlank() ? null : Path.of(name);
+  }
+
+  /**
+   * The provider chosen for an algorithm, along with the measurements it was chosen from
+   */
+  public static class Selection {
+    private final String algorithm;
+    private final Provider provider;
+    private final Map<String, Double> nanosPerOperation;
+    private final boolean fromCache;
+
+    private Selection(String algorithm, Provider provider, Map<String, Double> nanosPerOperation,
+        boolean fromCache) {
+      this.algorithm = algorithm;
+      this.provider = provider;
+      this.nanosPerOperation = Collections.unmodifiableMap(nanosPerOperation);
+      this.fromCache = fromCache;
+    }
+
+    public String getAlgorithm() {
+      return algorithm;
+    }
+
+    public String getProviderName() {
+      return provider.getName();
+    }
+
+    /**
+     * @return the measured time of one HMAC for each provider; empty if nothing was measured
+     */
+    public Map<String, Double> getNanosPerOperation() {
+      return nanosPerOperation;
+    }
+
+    /**
+     * @return true if the selection was read from the cache file
+     */
+    public boolean isFromCache() {
+      return fromCache;
+    }
+
+    @Override
+    public String toString() {
+      return algorithm + "=" + getProviderName()
+          + (fromCache ? " (cached)" : " " + nanosPerOperation);
+    }
+  }
+}
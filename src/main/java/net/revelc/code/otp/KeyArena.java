@@ -0,0 +1,309 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Objects;
+
+/**
+ * Holds HMAC keys off the heap, in direct memory slabs that are carved into fixed-size slots. An
+ * enrolled key is only referenced by its slot number, so it costs an {@code int} on the heap.
+ *
+ * <p>
+ * The HMAC is computed directly from the slot, by feeding the key pads to a {@link MessageDigest}
+ * from a direct buffer, so no heap copy of the key is made for each use, unlike with
+ * {@link javax.crypto.spec.SecretKeySpec}. The only heap memory that sees the padded key is the
+ * internal buffers of the per-thread digests, which are reused. Freed slots, and the whole arena
+ * when it is closed, are zeroed.
+ */
+public class KeyArena implements AutoCloseable {
+
+  private static final int DEFAULT_SLOTS_PER_SLAB = 4096;
+  private static final byte IPAD = 0x36;
+  private static final byte OPAD = 0x5c;
+
+  private final String digestAlgorithm;
+  private final int blockSize;
+  private final int slotsPerSlab;
+  private final ThreadLocal<Engine> engines;
+  // replaced, never modified, when a slab is added, so readers don't need the lock
+  private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+  private int[] freeSlots = new int[16];
+  private int numFree = 0;
+  // the slots in freeSlots, to reject freeing a slot twice
+  private final BitSet freeSet = new BitSet();
+  private int nextSlot = 0;
+  private volatile boolean closed = false;
+
+  /**
+   * @param algorithm the HMAC algorithm, as used by {@link Options#getAlgorithm()}
+   */
+  public KeyArena(String algorithm) {
+    this(algorithm, DEFAULT_SLOTS_PER_SLAB);
+  }
+
+  /**
+   * @param algorithm the HMAC algorithm, as used by {@link Options#getAlgorithm()}
+   * @param slotsPerSlab the number of keys held by each direct memory slab
+   */
+  public KeyArena(String algorithm, int slotsPerSlab) {
+    Objects.requireNonNull(algorithm, "Algorithm must not be null");
+    switch (algorithm) {
+      case "HmacSHA1":
+        this.digestAlgorithm = "SHA-1";
+        this.blockSize = 64;
+        break;
+      case "HmacSHA256":
+        this.digestAlgorithm = "SHA-256";
+        this.blockSize = 64;
+        break;
+      case "HmacSHA512":
+        this.digestAlgorithm = "SHA-512";
+        this.blockSize = 128;
+        break;
+      default:
+        throw new IllegalArgumentException("Unsupported algorithm: " + algorithm);
+    }
+    if (slotsPerSlab <= 0 || (long) slotsPerSlab * blockSize > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Invalid number of slots per slab: " + slotsPerSlab);
+    }
+    this.slotsPerSlab = slotsPerSlab;
+    this.engines = ThreadLocal.withInitial(() -> new Engine(newDigest(), blockSize));
+  }
+
+  /**
+   * Copies a key into a free slot. Like in HMAC itself, a key longer than the digest block size is
+   * replaced by its hash. The caller should wipe its own copy of the key afterwards.
+   *
+   * @param key the raw key
+   * @return the slot holding the key
+   */
+  public int store(byte[] key) {
+    byte[] hashed = null;
+    if (key.length > blockSize) {
+      hashed = newDigest().digest(key);
+      key = hashed;
+    }
+    try {
+      synchronized (this) {
+        ensureOpen();
+        int slot = numFree > 0 ? freeSlots[--numFree] : nextSlot++;
+        freeSet.clear(slot);
+        int slab = slot / slotsPerSlab;
+        if (slab == slabs.length) {
+          var grown = Arrays.copyOf(slabs, slab + 1);
+          grown[slab] = ByteBuffer.allocateDirect(slotsPerSlab * blockSize);
+          slabs = grown;
+        }
+        int offset = (slot % slotsPerSlab) * blockSize;
+        // keys are zero padded up to the block size, as HMAC does anyway
+        for (int i = 0; i < blockSize; i++) {
+          slabs[slab].put(offset + i, i < key.length ? key[i] : 0);
+        }
+        return slot;
+      }
+    } finally {
+      if (hashed != null) {
+        Arrays.fill(hashed, (byte) 0);
+      }
+    }
+  }
+
+  /**
+   * Decodes a base32 key into a free slot, wiping the decoded copy.
+   *
+   * @param base32Key the base32 encoded key
+   * @return the slot holding the key
+   */
+  public int storeBase32(String base32Key) {
+    var key = Base32.decode(base32Key);
+    try {
+      return store(key);
+    } finally {
+      Arrays.fill(key, (byte) 0);
+    }
+  }
+
+  /**
+   * Zeroes a slot, and makes it available for another key.
+   *
+   * @param slot the slot to free
+   * @throws IllegalArgumentException if the slot doesn't hold a key, for instance because it was
+   *         already freed
+   */
+  public synchronized void free(int slot) {
+    checkInUse(slot);
+    var slab = slabs[slot / slotsPerSlab];
+    int offset = (slot % slotsPerSlab) * blockSize;
+    for (int i = 0; i < blockSize; i++) {
+      slab.put(offset + i, (byte) 0);
+    }
+    if (numFree == freeSlots.length) {
+      freeSlots = Arrays.copyOf(freeSlots, numFree * 2);
+    }
+    freeSlots[numFree++] = slot;
+    freeSet.set(slot);
+  }
+
+  /**
+   * Copies the key in a slot out of the arena, zero padded to the block size, for instance to move
+   * it to another arena. The caller must wipe the copy once it is done with it.
+   *
+   * @param slot the slot holding the key
+   * @return a copy of the key
+   */
+  public synchronized byte[] copyKey(int slot) {
+    checkInUse(slot);
+    var key = new byte[blockSize];
+    var slab = slabs[slot / slotsPerSlab];
+    int offset = (slot % slotsPerSlab) * blockSize;
+    for (int i = 0; i < blockSize; i++) {
+      key[i] = slab.get(offset + i);
+    }
+    return key;
+  }
+
+  /**
+   * Computes the HMAC of a message with the key in the given slot.
+   *
+   * @param slot the slot holding the key
+   * @param message the message
+   * @return the HMAC
+   */
+  public byte[] hmac(int slot, byte[] message) {
+    var current = slabs;
+    int slab = slot / slotsPerSlab;
+    if (slot < 0 || slab >= current.length) {
+      ensureOpen();
+      throw new IllegalArgumentException("No such slot: " + slot);
+    }
+    return engines.get().hmac(current[slab], (slot % slotsPerSlab) * blockSize, message);
+  }
+
+  /**
+   * Computes a one-time password with the key in the given slot.
+   *
+   * @param slot the slot holding the key
+   * @param counter the HOTP counter, or the TOTP time step
+   * @param digits the number of digits in the password
+   * @return the password
+   */
+  public String generateOtp(int slot, long counter, int digits) {
+    var current = slabs;
+    int slab = slot / slotsPerSlab;
+    if (slot < 0 || slab >= current.length) {
+      ensureOpen();
+      throw new IllegalArgumentException("No such slot: " + slot);
+    }
+    var engine = engines.get();
+    var hmac = engine.hmac(current[slab], (slot % slotsPerSlab) * blockSize,
+        OtpKernels.writeCounter(engine.message, counter));
+    return OtpKernels.format(OtpKernels.otp(hmac, digits), digits);
+  }
+
+  /**
+   * @return the number of slots currently holding a key
+   */
+  public synchronized int size() {
+    return nextSlot - numFree;
+  }
+
+  /**
+   * Zeroes all the slabs, and releases them.
+   */
+  @Override
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    var zeros = ByteBuffer.allocateDirect(Math.min(8192, slotsPerSlab * blockSize));
+    for (ByteBuffer slab : slabs) {
+      var target = slab.duplicate().clear();
+      while (target.hasRemaining()) {
+        target.put(zeros.clear().limit(Math.min(zeros.capacity(), target.remaining())));
+      }
+    }
+    slabs = new ByteBuffer[0];
+    numFree = 0;
+    freeSet.clear();
+    nextSlot = 0;
+  }
+
+  private void ensureOpen() {
+    if (closed) {
+      throw new IllegalStateException("Key arena is closed");
+    }
+  }
+
+  private void checkInUse(int slot) {
+    ensureOpen();
+    if (slot < 0 || slot >= nextSlot || freeSet.get(slot)) {
+      throw new IllegalArgumentException("No key in slot: " + slot);
+    }
+  }
+
+  private MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance(digestAlgorithm);
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError("Completely unexpected", e);
+    }
+  }
+
+  /**
+   * Per-thread HMAC state; the padded key only ever lives in the direct scratch buffer
+   */
+  private static class Engine {
+    private final MessageDigest digest;
+    private final ByteBuffer pad;
+    private final byte[] message = new byte[OtpKernels.MESSAGE_LENGTH];
+
+    private Engine(MessageDigest digest, int blockSize) {
+      this.digest = digest;
+      this.pad = ByteBuffer.allocateDirect(blockSize);
+    }
+
+    private byte[] hmac(ByteBuffer slab, int offset, byte[] message) {
+      try {
+        // H((K ^ opad) || H((K ^ ipad) || message))
+        xorPad(slab, offset, IPAD);
+        digest.update(pad);
+        digest.update(message);
+        var inner = digest.digest();
+        xorPad(slab, offset, OPAD);
+        digest.update(pad);
+        digest.update(inner);
+        return digest.digest();
+      } finally {
+        pad.clear();
+        while (pad.hasRemaining()) {
+          pad.put((byte) 0);
+        }
+      }
+    }
+
+    private void xorPad(ByteBuffer slab, int offset, byte value) {
+      pad.clear();
+      for (int i = 0; i < pad.capacity(); i++) {
+        pad.put(i, (byte) (slab.get(offset + i) ^ value));
+      }
+    }
+  }
+}
@@ -0,0 +1,301 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.function.Function;
+
+/**
+ * Verifies codes for the accounts of an {@link AccountRegistry}, whose keys live in
+ * {@link KeyArena}s, and rotates their keys without downtime. During a rotation, an account has a
+ * pending key next to its current one, and codes from either are accepted until the rotation
+ * expires. The current key is always tried first, so the pending key only costs HMACs for the
+ * codes that don't match the current key, which should mostly come from devices that already
+ * have the new key.
+ *
+ * <p>
+ * The first code matching the pending key proves the device has it, so it replaces the current
+ * key, which is freed right away. Rotations that are never confirmed expire through a
+ * {@link TimingWheel}, in bulk, when {@link #expire(long)} is called, and the pending key then
+ * also replaces the current one. A rotation found expired during verification is completed on the
+ * spot.
+ *
+ * <p>
+ * Verification doesn't lock, except to complete a rotation. Key references are changed under the
+ * lock of this object, so they must all go through it once it is in use, including to drop
+ * accounts. Replaced keys are freed right away; a verification that raced with the replacement
+ * sees that the reference changed, and starts over with the new one.
+ */
+public class KeyRotation {
+
+  /**
+   * The key reference of an account without a key.
+   */
+  public static final int NO_KEY = -1;
+
+  private static final int PAGE_BITS = 12;
+  private static final int PAGE_SIZE = 1 << PAGE_BITS;
+  private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+  private static final VarHandle INTS = MethodHandles.arrayElementVarHandle(int[].class);
+
+  private final AccountRegistry registry;
+  private final Function<String, KeyArena> arenas;
+  private final TimingWheel wheel;
+  private volatile int[][] pendingKeyRefs = new int[0][];
+  private volatile long[][] pendingExpiries = new long[0][];
+  private volatile AuditLog auditLog;
+
+  /**
+   * @param registry the accounts
+   * @param arenas gives the arena holding the keys of each algorithm
+   * @param wheel the wheel to expire rotations with
+   */
+  public KeyRotation(AccountRegistry registry, Function<String, KeyArena> arenas,
+      TimingWheel wheel) {
+    this.registry = registry;
+    this.arenas = arenas;
+    this.wheel = wheel;
+  }
+
+  /**
+   * Starts a rotation, replacing any rotation already in progress for the account.
+   *
+   * @param slot the slot of the account
+   * @param newKey the raw new key; the caller should wipe it afterwards
+   * @param expiry the time until which the current key is still accepted, in epoch seconds
+   */
+  public void begin(int slot, byte[] newKey, long expiry) {
+    synchronized (this) {
+      if (slot < 0 || slot >= registry.size()) {
+        throw new IllegalArgumentException("No such account slot: " + slot);
+      }
+      ensurePages(slot);
+      var arena = arenas.apply(registry.getAlgorithm(slot));
+      int page = slot >> PAGE_BITS;
+      int index = slot & PAGE_MASK;
+      int previous = getPendingKeyRef(slot);
+      pendingExpiries[page][index] = expiry;
+      // the reference is released after the expiry, so readers that see it also see its expiry
+      INTS.setRelease(pendingKeyRefs[page], index, arena.store(newKey));
+      if (previous != NO_KEY) {
+        free(arena, previous);
+      }
+    }
+    // outside of the lock, as the wheel calls back into promote with its own lock held
+    wheel.schedule(slot, expiry);
+  }
+
+  /**
+   * Verifies a code against the current key of an account, then against its pending key, if it
+   * has one. Codes for a time step at or before the last accepted one are rejected.
+   *
+   * @param slot the slot of the account
+   * @param code the code
+   * @param epochSeconds the time the code was provided at
+   * @param window the number of adjacent time steps to also accept
+   * @return true if the code is valid, and wasn't used before
+   */
+  public boolean verify(int slot, String code, long epochSeconds, int window) {
+    // the config is read once, so it can't change halfway if the account is re-registered
+    long config = registry.getConfig(slot);
+    long counter = epochSeconds / AccountRegistry.configTimestep(config);
+    int digits = AccountRegistry.configDigits(config);
+    if (code == null || code.length() != digits) {
+      return audit(slot, counter, AuditLog.Outcome.REJECTED, epochSeconds);
+    }
+    var arena = arenas.apply(AccountRegistry.configAlgorithm(config));
+    var expected = code.getBytes(StandardCharsets.US_ASCII);
+    long matched;
+    while (true) {
+      int pending = getPendingKeyRef(slot);
+      if (pending != NO_KEY && epochSeconds >= getPendingExpiry(slot)) {
+        promote(slot, pending);
+        continue;
+      }
+      int keyRef = registry.getKeyRef(slot);
+      matched = keyRef == NO_KEY ? -1 : match(arena, keyRef, expected, counter, window, digits);
+      boolean fromPending = false;
+      if (matched < 0 && pending != NO_KEY) {
+        matched = match(arena, pending, expected, counter, window, digits);
+        fromPending = matched >= 0;
+      }
+      // a key replaced meanwhile may have been freed, and its slot zeroed or reused by another
+      // key, so the codes are only trusted if both references are unchanged after computing them
+      VarHandle.acquireFence();
+      if (registry.getKeyRef(slot) != keyRef || getPendingKeyRef(slot) != pending) {
+        continue;
+      }
+      if (fromPending) {
+        promote(slot, pending);
+      }
+      break;
+    }
+    if (matched < 0) {
+      return audit(slot, counter, AuditLog.Outcome.REJECTED, epochSeconds);
+    }
+    if (!registry.advanceCounter(slot, matched)) {
+      return audit(slot, matched, AuditLog.Outcome.REPLAYED, epochSeconds);
+    }
+    return audit(slot, matched, AuditLog.Outcome.ACCEPTED, epochSeconds);
+  }
+
+  // returns whether the outcome is a success, to be returned by verify
+  private boolean audit(int slot, long step, AuditLog.Outcome outcome, long epochSeconds) {
+    var log = auditLog;
+    if (log != null) {
+      log.record(slot, step, outcome, epochSeconds);
+    }
+    return outcome == AuditLog.Outcome.ACCEPTED;
+  }
+
+  /**
+   * Sets where the outcome of each verification is recorded.
+   *
+   * @param auditLog the audit log, or null to not record verifications
+   */
+  public void setAuditLog(AuditLog auditLog) {
+    this.auditLog = auditLog;
+  }
+
+  private static long match(KeyArena arena, int keyRef, byte[] expected, long counter,
+      int window, int digits) {
+    long matched = -1;
+    // every step of the window is computed, so the time taken doesn't tell which one matched
+    for (long c = counter - window; c <= counter + window; c++) {
+      var actual = arena.generateOtp(keyRef, c, digits);
+      if (MessageDigest.isEqual(expected, actual.getBytes(StandardCharsets.US_ASCII))) {
+        matched = c;
+      }
+    }
+    return matched;
+  }
+
+  /**
+   * Completes the rotations that expired, up to the given time.
+   *
+   * @param epochSeconds the current time
+   * @return the number of rotations completed
+   */
+  public int expire(long epochSeconds) {
+    int[] completed = new int[1];
+    wheel.advance(epochSeconds, slot -> {
+      int pending = getPendingKeyRef(slot);
+      if (pending == NO_KEY) {
+        return;
+      }
+      long expiry = getPendingExpiry(slot);
+      if (expiry > epochSeconds) {
+        // due in a later turn of the wheel
+        wheel.schedule(slot, expiry);
+      } else if (promote(slot, pending)) {
+        completed[0]++;
+      }
+    });
+    return completed[0];
+  }
+
+  /**
+   * Ends the rotation of an account now, if it has one, so only its new key is accepted.
+   *
+   * @param slot the slot of the account
+   * @return false if the account wasn't being rotated
+   */
+  public boolean complete(int slot) {
+    int pending = getPendingKeyRef(slot);
+    return pending != NO_KEY && promote(slot, pending);
+  }
+
+  // replaces the current key with the pending one, unless the pending key changed meanwhile
+  private synchronized boolean promote(int slot, int pending) {
+    if (getPendingKeyRef(slot) != pending) {
+      return false;
+    }
+    int current = registry.getKeyRef(slot);
+    registry.setKeyRef(slot, pending);
+    INTS.setRelease(pendingKeyRefs[slot >> PAGE_BITS], slot & PAGE_MASK, NO_KEY);
+    if (current != NO_KEY) {
+      free(arenas.apply(registry.getAlgorithm(slot)), current);
+    }
+    return true;
+  }
+
+  // the new references are published before the key is zeroed, so a verification that read the
+  // zeroed, or reused, key also sees that its reference changed
+  private static void free(KeyArena arena, int keyRef) {
+    VarHandle.fullFence();
+    arena.free(keyRef);
+  }
+
+  /**
+   * Replaces the current key of an account, and cancels its rotation, freeing the keys it had.
+   *
+   * @param slot the slot of the account
+   * @param keyRef the new key reference, or {@link #NO_KEY} to drop the key
+   */
+  public synchronized void replaceKey(int slot, int keyRef) {
+    var arena = arenas.apply(registry.getAlgorithm(slot));
+    int pending = getPendingKeyRef(slot);
+    if (pending != NO_KEY) {
+      INTS.setRelease(pendingKeyRefs[slot >> PAGE_BITS], slot & PAGE_MASK, NO_KEY);
+      free(arena, pending);
+    }
+    int current = registry.getKeyRef(slot);
+    registry.setKeyRef(slot, keyRef);
+    if (current != NO_KEY && current != keyRef) {
+      free(arena, current);
+    }
+  }
+
+  /**
+   * @param slot the slot of the account
+   * @return the reference to the pending key of the account, or {@link #NO_KEY} if it isn't being
+   *         rotated
+   */
+  public int getPendingKeyRef(int slot) {
+    var pages = pendingKeyRefs;
+    int page = slot >> PAGE_BITS;
+    return page < pages.length ? (int) INTS.getAcquire(pages[page], slot & PAGE_MASK) : NO_KEY;
+  }
+
+  /**
+   * @param slot the slot of an account being rotated
+   * @return the time until which the current key of the account is accepted, in epoch seconds
+   */
+  public long getPendingExpiry(int slot) {
+    return pendingExpiries[slot >> PAGE_BITS][slot & PAGE_MASK];
+  }
+
+  private void ensurePages(int slot) {
+    int pages = (slot >> PAGE_BITS) + 1;
+    if (pages <= pendingKeyRefs.length) {
+      return;
+    }
+    var newKeyRefs = Arrays.copyOf(pendingKeyRefs, pages);
+    var newExpiries = Arrays.copyOf(pendingExpiries, pages);
+    for (int page = pendingKeyRefs.length; page < pages; page++) {
+      newKeyRefs[page] = new int[PAGE_SIZE];
+      Arrays.fill(newKeyRefs[page], NO_KEY);
+      newExpiries[page] = new long[PAGE_SIZE];
+    }
+    // the expiries are published first, as readers find them through the key references
+    pendingExpiries = newExpiries;
+    pendingKeyRefs = newKeyRefs;
+  }
+}
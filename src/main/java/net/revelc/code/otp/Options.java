@@ -35,7 +35,7 @@ public class Options {
     TOTP("totp"), TIMESTART("start-time", "S"), TIMENOW("now", "N"), TIMESTEP("time-step-size",
         "s"),
 
-    HMAC_SHA1("sha1"), HMAC_SHA256("sha256"), HMAC_SHA512("sha512"),
+    HMAC_SHA1("sha1"), HMAC_SHA256("sha256"), HMAC_SHA512("sha512"), PROVIDER("provider"),
 
     DIGITS("digits", "d");
 
@@ -103,6 +103,7 @@ public class Options {
   private boolean totp = true;
   private boolean help = false;
   private int timestep = 30;
+  private String provider = null;
 
   private Options() {
     // copy constructor
@@ -146,6 +147,10 @@ public class Options {
           case HMAC_SHA512:
             this.algorithm = HMAC_SHA512;
             break;
+          case PROVIDER:
+            this.provider = getStringValue(equalsArg, args, i,
+                "A security provider name must follow the provider option");
+            break;
           case HOTP:
             this.totp = false;
             break;
@@ -188,6 +193,16 @@ public class Options {
     throw new IllegalArgumentException(errorMessage);
   }
 
+  private static String getStringValue(String equalsArg, String[] argArray,
+      AtomicInteger nextArgIndex, String errorMessage) {
+    if (equalsArg != null) {
+      return equalsArg;
+    } else if (nextArgIndex.incrementAndGet() < argArray.length) {
+      return argArray[nextArgIndex.get()];
+    }
+    throw new IllegalArgumentException(errorMessage);
+  }
+
   private void doHelp() {
     // TODO Auto-generated method stub
     System.out.println("print help here");
@@ -211,6 +226,7 @@ public class Options {
     copy.algorithm = algorithm;
     copy.totp = totp;
     copy.timestep = timestep;
+    copy.provider = provider;
     copy.keys = List.of(newkey);
     return copy;
   }
@@ -243,6 +259,13 @@ public class Options {
     return timestep;
   }
 
+  /**
+   * @return the security provider pinned for HMAC, or null to use {@link HmacProviders}
+   */
+  public String getProvider() {
+    return provider;
+  }
+
   /**
    * @return the counter
    */
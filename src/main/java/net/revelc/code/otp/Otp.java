@@ -17,7 +17,8 @@ package net.revelc.code.otp;
 import java.math.BigInteger;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.time.Instant;
+import java.security.NoSuchProviderException;
+import java.time.Clock;
 import java.util.Arrays;
 
 import javax.crypto.Mac;
@@ -26,68 +27,113 @@ import javax.crypto.spec.SecretKeySpec;
 public class Otp {
 
   protected Options options;
+  protected Clock clock;
 
   public Otp(Options options) {
+    this(options, Clock.systemUTC());
+  }
+
+  public Otp(Options options, Clock clock) {
     this.options = options;
+    this.clock = clock;
   }
 
   public static void main(String[] args) {
+    if (args.length > 0 && "verify".equals(args[0])) {
+      BatchVerifier.run(Options.parse(Arrays.copyOfRange(args, 1, args.length)));
+      return;
+    }
     new Otp(Options.parse(args)).generate();
   }
 
 
   public void generate() {
-    var counter = getCounterBytes(getCounter());
+    var counter = OtpKernels.writeCounter(new byte[OtpKernels.MESSAGE_LENGTH],
+        getCounter().longValueExact());
     for (String key : options.getKeys()) {
       var hmac = hmac(Base32.decode(key), counter);
-      int offset = hmac[hmac.length - 1] & 0x0F;
-      var result = Arrays.copyOfRange(hmac, offset, offset + 4);
-      result[0] &= 0x7f;
-      var otp = new BigInteger(result).longValueExact();
 
       int digits = options.getDigits();
-      System.out.printf("%0" + digits + "d%n", otp % (long) Math.pow(10, digits));
+      System.out.println(OtpKernels.format(OtpKernels.otp(hmac, digits), digits));
     }
   }
 
   protected String generateOtp(String key, BigInteger counter) {
 
-    var cBytes = getCounterBytes(counter);
+    var cBytes = OtpKernels.writeCounter(new byte[OtpKernels.MESSAGE_LENGTH],
+        counter.longValueExact());
     var hmac = hmac(Base32.decode(key), cBytes);
-    int offset = hmac[hmac.length - 1] & 0x0F;
-    var result = Arrays.copyOfRange(hmac, offset, offset + 4);
-    result[0] &= 0x7f;
-    var otp = new BigInteger(result).longValueExact();
 
     int digits = options.getDigits();
-    return formatOtp(otp, digits);
+    return OtpKernels.format(OtpKernels.otp(hmac, digits), digits);
+  }
+
+  /**
+   * Computes a password with an HMAC context that was already initialized with the key, so that
+   * the same context can be reused for many counters.
+   *
+   * @param mac the context returned by {@link #newMac(String)}
+   * @param counter the HOTP counter, or the TOTP time step
+   * @return the password
+   */
+  protected String generateOtp(Mac mac, long counter) {
+    return generateOtp(mac, new byte[OtpKernels.MESSAGE_LENGTH], counter);
+  }
+
+  /**
+   * Computes a password like {@link #generateOtp(Mac, long)}, writing the counter into the given
+   * buffer, so that the same buffer can be reused for many counters.
+   *
+   * @param mac the context returned by {@link #newMac(String)}
+   * @param message the buffer, of {@link OtpKernels#MESSAGE_LENGTH} bytes
+   * @param counter the HOTP counter, or the TOTP time step
+   * @return the password
+   */
+  protected String generateOtp(Mac mac, byte[] message, long counter) {
+    var hmac = mac.doFinal(OtpKernels.writeCounter(message, counter));
+    int digits = options.getDigits();
+    return OtpKernels.format(OtpKernels.otp(hmac, digits), digits);
   }
 
-  private String formatOtp(long otp, int digits) {
-    return String.format("%0" + digits + "d", otp % (long) Math.pow(10, digits));
+  /**
+   * Creates an HMAC context for the configured algorithm, initialized with the given key.
+   *
+   * @param key the base32 encoded key
+   * @return the context
+   */
+  protected Mac newMac(String key) {
+    var keyBytes = Base32.decode(key);
+    try {
+      return newMac(keyBytes);
+    } finally {
+      Arrays.fill(keyBytes, (byte) 0);
+    }
   }
 
 
   public BigInteger getCounter() {
     // counter is number of intervals since the epoch in TOTP; in HOTP the counter is specified
     return BigInteger
-        .valueOf(options.isTotp() ? Instant.now().getEpochSecond() / options.getTimestep()
+        .valueOf(options.isTotp() ? clock.instant().getEpochSecond() / options.getTimestep()
             : options.getCounter());
   }
 
-  private byte[] getCounterBytes(BigInteger counter) {
-    var cBytes = counter.toByteArray();
-    var padded = new byte[8];
-    System.arraycopy(cBytes, 0, padded, padded.length - cBytes.length, cBytes.length);
-    return padded;
+  private byte[] hmac(byte[] key, byte[] text) {
+    return newMac(key).doFinal(text);
   }
 
-  private byte[] hmac(byte[] key, byte[] text) {
+  private Mac newMac(byte[] key) {
     try {
-      var mac = Mac.getInstance(options.getAlgorithm());
+      var mac = options.getProvider() == null ? HmacProviders.getMac(options.getAlgorithm())
+          : Mac.getInstance(options.getAlgorithm(), options.getProvider());
       mac.init(new SecretKeySpec(key, mac.getAlgorithm()));
-      return mac.doFinal(text);
-    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      return mac;
+    } catch (NoSuchProviderException e) {
+      throw new IllegalArgumentException("Unknown provider: " + options.getProvider(), e);
+    } catch (NoSuchAlgorithmException e) {
+      // the algorithm was validated by Options, so it's the provider that doesn't support it
+      throw new IllegalArgumentException(e.getMessage(), e);
+    } catch (InvalidKeyException e) {
       throw new AssertionError("Completely unexpected", e);
     }
   }
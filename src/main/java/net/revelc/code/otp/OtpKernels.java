@@ -0,0 +1,114 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * The arithmetic of HOTP (RFC 4226) around the HMAC: writing the counter message, and the dynamic
+ * truncation of the HMAC into a password. The counter is written, and the truncated value read,
+ * as whole big-endian words through byte array views, so no intermediate arrays or
+ * {@link java.math.BigInteger}s are created, and the message buffer can be reused across
+ * counters. These work for HMACs of any length of at least 20 bytes, such as those of SHA-1,
+ * SHA-256 and SHA-512.
+ */
+public final class OtpKernels {
+
+  /**
+   * The length of the counter message.
+   */
+  public static final int MESSAGE_LENGTH = Long.BYTES;
+
+  /**
+   * The largest number of digits a password can have, as the truncated value has 31 bits.
+   */
+  public static final int MAX_DIGITS = 10;
+
+  private static final VarHandle LONG_BE =
+      MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+  private static final VarHandle INT_BE =
+      MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+  private static final long[] POW10 = new long[MAX_DIGITS + 1];
+
+  static {
+    POW10[0] = 1;
+    for (int i = 1; i < POW10.length; i++) {
+      POW10[i] = POW10[i - 1] * 10;
+    }
+  }
+
+  private OtpKernels() {}
+
+  /**
+   * Writes a counter into a message buffer, as 8 big-endian bytes.
+   *
+   * @param message the buffer, of at least {@link #MESSAGE_LENGTH} bytes
+   * @param counter the HOTP counter, or the TOTP time step
+   * @return the buffer
+   */
+  public static byte[] writeCounter(byte[] message, long counter) {
+    LONG_BE.set(message, 0, counter);
+    return message;
+  }
+
+  /**
+   * Applies the dynamic truncation of RFC 4226: the low 4 bits of the last byte give the offset
+   * of 4 bytes, read as a big-endian integer without its sign bit.
+   *
+   * @param hmac the HMAC
+   * @return the truncated value, from 0 to 2^31 - 1
+   */
+  public static int truncate(byte[] hmac) {
+    int offset = hmac[hmac.length - 1] & 0x0F;
+    return (int) INT_BE.get(hmac, offset) & 0x7FFFFFFF;
+  }
+
+  /**
+   * Computes the password from an HMAC.
+   *
+   * @param hmac the HMAC
+   * @param digits the number of digits, from 1 to {@link #MAX_DIGITS}
+   * @return the password, as a number lower than 10^digits
+   */
+  public static int otp(byte[] hmac, int digits) {
+    checkDigits(digits);
+    return (int) (truncate(hmac) % POW10[digits]);
+  }
+
+  /**
+   * Formats a password, padding it with leading zeroes.
+   *
+   * @param otp the password, as returned by {@link #otp(byte[], int)}
+   * @param digits the number of digits, from 1 to {@link #MAX_DIGITS}
+   * @return the formatted password
+   */
+  public static String format(int otp, int digits) {
+    checkDigits(digits);
+    var chars = new char[digits];
+    for (int i = digits - 1; i >= 0; i--) {
+      chars[i] = (char) ('0' + otp % 10);
+      otp /= 10;
+    }
+    return new String(chars);
+  }
+
+  private static void checkDigits(int digits) {
+    if (digits < 1 || digits > MAX_DIGITS) {
+      throw new IllegalArgumentException("Digits must be between 1 and " + MAX_DIGITS);
+    }
+  }
+}
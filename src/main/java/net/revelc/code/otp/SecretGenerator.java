@@ -0,0 +1,139 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+/**
+ * Generates new random secrets, and provisions accounts with them as {@code otpauth://} URIs.
+ */
+public class SecretGenerator {
+
+  // each thread gets its own generator, so provisioning in parallel doesn't contend on one lock
+  private static final ThreadLocal<SecureRandom> random =
+      ThreadLocal.withInitial(SecureRandom::new);
+
+  private final Options options;
+  private final int length;
+
+  public SecretGenerator(Options options) {
+    this.options = Objects.requireNonNull(options, "Options must not be null");
+    this.length = recommendedLength(options.getAlgorithm());
+  }
+
+  /**
+   * Returns the secret length recommended for an HMAC algorithm, which is the length of its output,
+   * as used by the reference implementation in RFC 6238.
+   *
+   * @param algorithm the HMAC algorithm
+   * @return the length in bytes
+   */
+  public static int recommendedLength(String algorithm) {
+    switch (algorithm) {
+      case "HmacSHA1":
+        return 20;
+      case "HmacSHA256":
+        return 32;
+      case "HmacSHA512":
+        return 64;
+      default:
+        throw new IllegalArgumentException("Unsupported algorithm: " + algorithm);
+    }
+  }
+
+  /**
+   * @return a new random secret, of the length recommended for the configured algorithm
+   */
+  public byte[] generateSecret() {
+    var secret = new byte[length];
+    random.get().nextBytes(secret);
+    return secret;
+  }
+
+  /**
+   * @return a new random secret, base32 encoded
+   */
+  public String generateBase32Secret() {
+    var secret = generateSecret();
+    try {
+      return Base32.encode(secret);
+    } finally {
+      Arrays.fill(secret, (byte) 0);
+    }
+  }
+
+  /**
+   * Builds a key URI in the format understood by authenticator apps.
+   *
+   * @param issuer the provider or service the account belongs to
+   * @param account the account name
+   * @param base32Secret the base32 encoded secret
+   * @return the {@code otpauth://} URI
+   */
+  public String toUri(String issuer, String account, String base32Secret) {
+    var uri = new StringBuilder(128 + base32Secret.length());
+    uri.append("otpauth://").append(options.isTotp() ? "totp" : "hotp").append('/')
+        .append(encode(issuer)).append(':').append(encode(account));
+    uri.append("?secret=").append(base32Secret);
+    uri.append("&issuer=").append(encode(issuer));
+    uri.append("&algorithm=").append(options.getAlgorithm().substring("Hmac".length()));
+    uri.append("&digits=").append(options.getDigits());
+    if (options.isTotp()) {
+      uri.append("&period=").append(options.getTimestep());
+    } else {
+      uri.append("&counter=").append(options.getCounter());
+    }
+    return uri.toString();
+  }
+
+  /**
+   * Generates a secret for each of the given accounts, and writes their URIs to the given writer,
+   * one per line, in the same order as the accounts. The secrets of each batch are generated in
+   * parallel, and the writer is flushed after each batch, so only one batch is held in memory.
+   *
+   * @param issuer the provider or service the accounts belong to
+   * @param accounts the account names
+   * @param out where to write the URIs
+   * @param batchSize the number of accounts in each batch
+   * @return the number of accounts provisioned
+   */
+  public int provision(String issuer, List<String> accounts, Writer out, int batchSize)
+      throws IOException {
+    if (batchSize <= 0) {
+      throw new IllegalArgumentException("Batch size must be strictly positive");
+    }
+    for (int start = 0; start < accounts.size(); start += batchSize) {
+      var batch = accounts.subList(start, Math.min(accounts.size(), start + batchSize));
+      var lines = batch.parallelStream().map(a -> toUri(issuer, a, generateBase32Secret()))
+          .collect(Collectors.joining("\n", "", "\n"));
+      out.write(lines);
+      out.flush();
+    }
+    return accounts.size();
+  }
+
+  private static String encode(String s) {
+    return URLEncoder.encode(s, StandardCharsets.UTF_8).replace("+", "%20");
+  }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A hashed timing wheel of integer slots, to expire large numbers of deadlines in bulk instead of
+ * with a timer per deadline. Each bucket covers one tick, and holds the slots due in that tick, or
+ * in a later turn of the wheel; the consumer must check the actual deadline of each slot it is
+ * given, and schedule it again if it isn't due yet. Slots may be scheduled more than once, so the
+ * consumer must also ignore slots that no longer have a deadline.
+ */
+public class TimingWheel {
+
+  private final int tickSeconds;
+  private final int[][] buckets;
+  private final int[] counts;
+  private long lastTick = Long.MIN_VALUE;
+
+  /**
+   * @param ticks the number of buckets in the wheel
+   * @param tickSeconds the time covered by each bucket, in seconds
+   */
+  public TimingWheel(int ticks, int tickSeconds) {
+    if (ticks <= 0 || tickSeconds <= 0) {
+      throw new IllegalArgumentException("Ticks and tick length must be strictly positive");
+    }
+    this.tickSeconds = tickSeconds;
+    this.buckets = new int[ticks][8];
+    this.counts = new int[ticks];
+  }
+
+  /**
+   * Adds a slot to the bucket of its deadline.
+   *
+   * @param slot the slot
+   * @param deadline the deadline, in epoch seconds
+   */
+  public synchronized void schedule(int slot, long deadline) {
+    // deadlines already passed go to the next tick, rather than wait for a whole turn
+    long tick = Math.floorDiv(deadline, tickSeconds);
+    int bucket = bucket(lastTick == Long.MIN_VALUE ? tick : Math.max(tick, lastTick + 1));
+    if (counts[bucket] == buckets[bucket].length) {
+      buckets[bucket] = Arrays.copyOf(buckets[bucket], counts[bucket] * 2);
+    }
+    buckets[bucket][counts[bucket]++] = slot;
+  }
+
+  /**
+   * Empties the buckets of all the ticks elapsed since the previous call, up to and including the
+   * current one, and gives their slots to the consumer. Slots scheduled again by the consumer are
+   * kept for a later turn. The consumer is called without holding the lock of the wheel, so it may
+   * take other locks, and schedule slots, without risking a deadlock.
+   *
+   * @param epochSeconds the current time
+   * @param consumer receives the slots which may be due
+   * @return the number of slots given to the consumer
+   */
+  public int advance(long epochSeconds, IntConsumer consumer) {
+    int[][] due;
+    int[] dueCounts;
+    synchronized (this) {
+      long tick = Math.floorDiv(epochSeconds, tickSeconds);
+      long first = lastTick == Long.MIN_VALUE ? tick - buckets.length + 1
+          : Math.max(lastTick + 1, tick - buckets.length + 1);
+      lastTick = Math.max(lastTick, tick);
+      int ticks = (int) Math.max(0, tick - first + 1);
+      due = new int[ticks][];
+      dueCounts = new int[ticks];
+      for (int i = 0; i < ticks; i++) {
+        int bucket = bucket(first + i);
+        due[i] = buckets[bucket];
+        dueCounts[i] = counts[bucket];
+        // detach the bucket, as slots due in a later turn go back to it
+        buckets[bucket] = new int[8];
+        counts[bucket] = 0;
+      }
+    }
+    int given = 0;
+    for (int i = 0; i < due.length; i++) {
+      for (int j = 0; j < dueCounts[i]; j++) {
+        consumer.accept(due[i][j]);
+      }
+      given += dueCounts[i];
+    }
+    return given;
+  }
+
+  /**
+   * @return the number of slots currently scheduled, including stale ones
+   */
+  public synchronized int size() {
+    return Arrays.stream(counts).sum();
+  }
+
+  private int bucket(long tick) {
+    return (int) Math.floorMod(tick, (long) buckets.length);
+  }
+}
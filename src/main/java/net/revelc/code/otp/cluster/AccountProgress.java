@@ -0,0 +1,48 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp.cluster;
+
+/**
+ * What can change about an account on its previous partition while it is being moved: its replay
+ * counter advances as codes are accepted, and its key rotation, if it had one, can end. Rotations
+ * can't start during a move, as they wait for it.
+ */
+public class AccountProgress {
+  private final long lastCounter;
+  private final boolean rotating;
+
+  /**
+   * @param lastCounter the last counter accepted for the account
+   * @param rotating whether the account is still being rotated to a new key
+   */
+  public AccountProgress(long lastCounter, boolean rotating) {
+    this.lastCounter = lastCounter;
+    this.rotating = rotating;
+  }
+
+  /**
+   * @return the last counter accepted for the account, used to reject replayed codes
+   */
+  public long getLastCounter() {
+    return lastCounter;
+  }
+
+  /**
+   * @return true if the account is still being rotated to a new key
+   */
+  public boolean isRotating() {
+    return rotating;
+  }
+}
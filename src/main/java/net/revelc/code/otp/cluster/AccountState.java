@@ -0,0 +1,104 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp.cluster;
+
+import java.util.Arrays;
+
+/**
+ * Everything a partition knows about an account, as moved between partitions when they are
+ * rebalanced. The keys are wiped once the receiving partition has stored them.
+ */
+public class AccountState {
+  private final String id;
+  private final String algorithm;
+  private final int digits;
+  private final int timestep;
+  private final byte[] key;
+  private final long lastCounter;
+  private final byte[] pendingKey;
+  private final long pendingExpiry;
+
+  public AccountState(String id, String algorithm, int digits, int timestep, byte[] key,
+      long lastCounter) {
+    this(id, algorithm, digits, timestep, key, lastCounter, null, 0);
+  }
+
+  /**
+   * @param pendingKey the key the account is being rotated to, or null if it isn't
+   * @param pendingExpiry the time until which the current key is still accepted, in epoch seconds
+   */
+  public AccountState(String id, String algorithm, int digits, int timestep, byte[] key,
+      long lastCounter, byte[] pendingKey, long pendingExpiry) {
+    this.id = id;
+    this.algorithm = algorithm;
+    this.digits = digits;
+    this.timestep = timestep;
+    this.key = key;
+    this.lastCounter = lastCounter;
+    this.pendingKey = pendingKey;
+    this.pendingExpiry = pendingExpiry;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getAlgorithm() {
+    return algorithm;
+  }
+
+  public int getDigits() {
+    return digits;
+  }
+
+  public int getTimestep() {
+    return timestep;
+  }
+
+  /**
+   * @return the raw key; not a copy
+   */
+  public byte[] getKey() {
+    return key;
+  }
+
+  /**
+   * @return the last counter accepted for the account, used to reject replayed codes
+   */
+  public long getLastCounter() {
+    return lastCounter;
+  }
+
+  /**
+   * @return the raw key the account is being rotated to, or null if it isn't; not a copy
+   */
+  public byte[] getPendingKey() {
+    return pendingKey;
+  }
+
+  public long getPendingExpiry() {
+    return pendingExpiry;
+  }
+
+  /**
+   * Zeroes the keys.
+   */
+  public void wipe() {
+    Arrays.fill(key, (byte) 0);
+    if (pendingKey != null) {
+      Arrays.fill(pendingKey, (byte) 0);
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * An immutable consistent hash ring, which assigns each account to a partition. Each partition is
+ * placed on the ring at a number of virtual nodes, so accounts are spread evenly, and adding a
+ * partition only moves the accounts it takes over.
+ */
+public class HashRing {
+
+  private final int virtualNodes;
+  private final Set<String> partitions;
+  private final TreeMap<Long, String> ring = new TreeMap<>();
+
+  /**
+   * @param virtualNodes the number of positions of each partition on the ring
+   * @param partitions the names of the partitions
+   */
+  public HashRing(int virtualNodes, Set<String> partitions) {
+    if (virtualNodes <= 0) {
+      throw new IllegalArgumentException("Number of virtual nodes must be strictly positive");
+    }
+    this.virtualNodes = virtualNodes;
+    this.partitions = Collections.unmodifiableSet(new TreeSet<>(partitions));
+    for (String partition : this.partitions) {
+      for (int i = 0; i < virtualNodes; i++) {
+        ring.put(hash(partition + "#" + i), partition);
+      }
+    }
+  }
+
+  /**
+   * @param partition the partition to add
+   * @return a new ring, with the given partition added
+   */
+  public HashRing with(String partition) {
+    var newPartitions = new TreeSet<>(partitions);
+    newPartitions.add(partition);
+    return new HashRing(virtualNodes, newPartitions);
+  }
+
+  /**
+   * @param account the account
+   * @return the partition owning the account
+   */
+  public String ownerOf(String account) {
+    if (ring.isEmpty()) {
+      throw new IllegalStateException("No partitions");
+    }
+    var entry = ring.ceilingEntry(hash(account));
+    return (entry == null ? ring.firstEntry() : entry).getValue();
+  }
+
+  public Set<String> getPartitions() {
+    return partitions;
+  }
+
+  public int getVirtualNodes() {
+    return virtualNodes;
+  }
+
+  // 64-bit FNV-1a, followed by a finalizer to spread nearby names over the whole ring
+  private static long hash(String s) {
+    long h = 0xcbf29ce484222325L;
+    for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+      h = (h ^ (b & 0xff)) * 0x100000001b3L;
+    }
+    h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+    h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    return h ^ (h >>> 33);
+  }
+}
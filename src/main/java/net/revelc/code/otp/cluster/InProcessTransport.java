@@ -0,0 +1,95 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp.cluster;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A transport to partitions living in the same process, to run a whole cluster on one machine.
+ */
+public class InProcessTransport implements PartitionTransport, AutoCloseable {
+
+  private final Map<String, Partition> partitions = new ConcurrentHashMap<>();
+
+  /**
+   * Creates a new, empty, partition reachable through this transport.
+   *
+   * @param name the partition name
+   * @return the partition
+   */
+  public Partition addPartition(String name) {
+    var partition = new Partition(name);
+    if (partitions.putIfAbsent(name, partition) != null) {
+      throw new IllegalArgumentException("Partition already exists: " + name);
+    }
+    return partition;
+  }
+
+  public Partition getPartition(String name) {
+    var partition = partitions.get(name);
+    if (partition == null) {
+      throw new IllegalArgumentException("No such partition: " + name);
+    }
+    return partition;
+  }
+
+  @Override
+  public boolean verify(String partition, String account, String code, long epochSeconds,
+      int window) {
+    return getPartition(partition).verify(account, code, epochSeconds, window);
+  }
+
+  @Override
+  public void enroll(String partition, AccountState state) {
+    getPartition(partition).enroll(state);
+  }
+
+  @Override
+  public List<AccountState> exportUnowned(String partition, HashRing ring) {
+    return getPartition(partition).exportUnowned(ring);
+  }
+
+  @Override
+  public Map<String, AccountProgress> exportProgress(String partition, HashRing ring) {
+    return getPartition(partition).exportProgress(ring);
+  }
+
+  @Override
+  public void mergeProgress(String partition, Map<String, AccountProgress> progress) {
+    getPartition(partition).mergeProgress(progress);
+  }
+
+  @Override
+  public int dropUnowned(String partition, HashRing ring) {
+    return getPartition(partition).dropUnowned(ring);
+  }
+
+  @Override
+  public boolean rotate(String partition, String account, byte[] newKey, long expiry) {
+    return getPartition(partition).rotate(account, newKey, expiry);
+  }
+
+  @Override
+  public int expireRotations(String partition, long epochSeconds) {
+    return getPartition(partition).expireRotations(epochSeconds);
+  }
+
+  @Override
+  public void close() {
+    partitions.values().forEach(Partition::close);
+  }
+}
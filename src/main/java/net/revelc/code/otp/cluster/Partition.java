@@ -0,0 +1,237 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp.cluster;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.revelc.code.otp.AccountRegistry;
+import net.revelc.code.otp.AuditLog;
+import net.revelc.code.otp.KeyArena;
+import net.revelc.code.otp.KeyRotation;
+import net.revelc.code.otp.TimingWheel;
+
+/**
+ * The verification state of the accounts owned by one partition: their configuration and replay
+ * state in an {@link AccountRegistry}, and their keys in a {@link KeyArena} per algorithm. Keys
+ * are rotated, and codes verified, through a {@link KeyRotation}. Accounts that moved to another
+ * partition keep their slot, without a key, so the slot is reused if they come back.
+ */
+public class Partition implements AutoCloseable {
+
+  private static final int NO_KEY = KeyRotation.NO_KEY;
+  // one day of one minute ticks, longer grace periods take more than one turn
+  private static final int WHEEL_TICKS = 1440;
+  private static final int WHEEL_TICK_SECONDS = 60;
+
+  private final String name;
+  private final AccountRegistry registry = new AccountRegistry();
+  private final Map<String, KeyArena> arenas = new ConcurrentHashMap<>();
+  private final KeyRotation rotation = new KeyRotation(registry, this::arena,
+      new TimingWheel(WHEEL_TICKS, WHEEL_TICK_SECONDS));
+
+  public Partition(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Stores an account, taking over its key, which is wiped.
+   *
+   * @param state the account
+   */
+  public synchronized void enroll(AccountState state) {
+    try {
+      int slot = registry.slotOf(state.getId());
+      if (slot >= 0) {
+        rotation.replaceKey(slot, NO_KEY);
+      }
+      int keyRef = arena(state.getAlgorithm()).store(state.getKey());
+      slot = registry.register(state.getId(), state.getAlgorithm(), state.getDigits(),
+          state.getTimestep(), keyRef);
+      registry.advanceCounter(slot, state.getLastCounter());
+      if (state.getPendingKey() != null) {
+        rotation.begin(slot, state.getPendingKey(), state.getPendingExpiry());
+      }
+    } finally {
+      state.wipe();
+    }
+  }
+
+  /**
+   * Verifies a code, rejecting codes for a time step at or before the last accepted one.
+   *
+   * @param account the account
+   * @param code the code
+   * @param epochSeconds the time the code was provided at
+   * @param window the number of adjacent time steps to also accept
+   * @return true if the code is valid, and wasn't used before
+   */
+  public boolean verify(String account, String code, long epochSeconds, int window) {
+    int slot = registry.slotOf(account);
+    return slot >= 0 && rotation.verify(slot, code, epochSeconds, window);
+  }
+
+  /**
+   * Sets where the outcome of each verification is recorded. The events identify accounts by
+   * their slot in this partition, which can be mapped back with {@link #getAccount(int)}.
+   *
+   * @param auditLog the audit log, or null to not record verifications
+   */
+  public void setAuditLog(AuditLog auditLog) {
+    rotation.setAuditLog(auditLog);
+  }
+
+  /**
+   * @param slot the slot of an account, as recorded in the audit log
+   * @return the account
+   */
+  public String getAccount(int slot) {
+    return registry.getId(slot);
+  }
+
+  /**
+   * Starts rotating the key of an account. Until the given expiry, codes from both the current and
+   * the new key are accepted; the first code from the new key ends the rotation early.
+   *
+   * @param account the account
+   * @param newKey the raw new key, which is wiped
+   * @param expiry the time until which the current key is still accepted, in epoch seconds
+   * @return false if the account has no key in this partition
+   */
+  public synchronized boolean rotate(String account, byte[] newKey, long expiry) {
+    try {
+      int slot = registry.slotOf(account);
+      if (slot < 0 || registry.getKeyRef(slot) == NO_KEY) {
+        return false;
+      }
+      rotation.begin(slot, newKey, expiry);
+      return true;
+    } finally {
+      Arrays.fill(newKey, (byte) 0);
+    }
+  }
+
+  /**
+   * Ends the rotations whose grace period is over, so only their new key is accepted.
+   *
+   * @param epochSeconds the current time
+   * @return the number of rotations ended
+   */
+  public int expireRotations(long epochSeconds) {
+    return rotation.expire(epochSeconds);
+  }
+
+  /**
+   * Copies out the accounts that the given ring assigns to another partition, without dropping
+   * them, so they can still be verified here until the new ring is in use.
+   *
+   * @param ring the new ring
+   * @return the accounts to move; their keys must be wiped by the receiver
+   */
+  public synchronized List<AccountState> exportUnowned(HashRing ring) {
+    var states = new ArrayList<AccountState>();
+    for (int slot = 0; slot < registry.size(); slot++) {
+      int keyRef = registry.getKeyRef(slot);
+      if (keyRef != NO_KEY && !name.equals(ring.ownerOf(registry.getId(slot)))) {
+        var arena = arena(registry.getAlgorithm(slot));
+        int pending = rotation.getPendingKeyRef(slot);
+        states.add(new AccountState(registry.getId(slot), registry.getAlgorithm(slot),
+            registry.getDigits(slot), registry.getTimestep(slot), arena.copyKey(keyRef),
+            registry.getLastCounter(slot), pending == NO_KEY ? null : arena.copyKey(pending),
+            pending == NO_KEY ? 0 : rotation.getPendingExpiry(slot)));
+      }
+    }
+    return states;
+  }
+
+  /**
+   * Reads the replay counters and rotation state of the accounts that the given ring assigns to
+   * another partition.
+   *
+   * @param ring the new ring
+   * @return the progress of each account
+   */
+  public synchronized Map<String, AccountProgress> exportProgress(HashRing ring) {
+    var progress = new HashMap<String, AccountProgress>();
+    for (int slot = 0; slot < registry.size(); slot++) {
+      if (registry.getKeyRef(slot) != NO_KEY && !name.equals(ring.ownerOf(registry.getId(slot)))) {
+        progress.put(registry.getId(slot), new AccountProgress(registry.getLastCounter(slot),
+            rotation.getPendingKeyRef(slot) != NO_KEY));
+      }
+    }
+    return progress;
+  }
+
+  /**
+   * Catches accounts up with their progress on another partition: their replay counters are
+   * advanced, unless they are already later, and the rotations that ended there are ended here
+   * too. Unknown accounts are ignored.
+   *
+   * @param progress the progress of each account
+   */
+  public void mergeProgress(Map<String, AccountProgress> progress) {
+    progress.forEach((account, p) -> {
+      int slot = registry.slotOf(account);
+      if (slot >= 0) {
+        registry.advanceCounter(slot, p.getLastCounter());
+        if (!p.isRotating()) {
+          rotation.complete(slot);
+        }
+      }
+    });
+  }
+
+  /**
+   * Drops, and wipes the keys of, the accounts that the given ring assigns to another partition.
+   *
+   * @param ring the ring now in use
+   * @return the number of accounts dropped
+   */
+  public synchronized int dropUnowned(HashRing ring) {
+    int dropped = 0;
+    for (int slot = 0; slot < registry.size(); slot++) {
+      int keyRef = registry.getKeyRef(slot);
+      if (keyRef != NO_KEY && !name.equals(ring.ownerOf(registry.getId(slot)))) {
+        rotation.replaceKey(slot, NO_KEY);
+        dropped++;
+      }
+    }
+    return dropped;
+  }
+
+  /**
+   * @return the number of accounts with a key in this partition
+   */
+  public synchronized int size() {
+    return arenas.values().stream().mapToInt(KeyArena::size).sum();
+  }
+
+  @Override
+  public void close() {
+    arenas.values().forEach(KeyArena::close);
+  }
+
+  private KeyArena arena(String algorithm) {
+    return arenas.computeIfAbsent(algorithm, KeyArena::new);
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp.cluster;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * How a {@link PartitionedVerifier} reaches the partitions. Implementations may call partitions in
+ * the same process, like {@link InProcessTransport}, or forward the calls to other nodes.
+ */
+public interface PartitionTransport {
+
+  /**
+   * Verifies a code on the given partition.
+   *
+   * @see Partition#verify(String, String, long, int)
+   */
+  public boolean verify(String partition, String account, String code, long epochSeconds,
+      int window);
+
+  /**
+   * Stores an account on the given partition.
+   *
+   * @see Partition#enroll(AccountState)
+   */
+  public void enroll(String partition, AccountState state);
+
+  /**
+   * Copies out the accounts of the given partition that the ring assigns elsewhere.
+   *
+   * @see Partition#exportUnowned(HashRing)
+   */
+  public List<AccountState> exportUnowned(String partition, HashRing ring);
+
+  /**
+   * Reads the replay counters and rotation state of the accounts of the given partition that the
+   * ring assigns elsewhere.
+   *
+   * @see Partition#exportProgress(HashRing)
+   */
+  public Map<String, AccountProgress> exportProgress(String partition, HashRing ring);
+
+  /**
+   * Catches accounts of the given partition up with their progress on another partition.
+   *
+   * @see Partition#mergeProgress(Map)
+   */
+  public void mergeProgress(String partition, Map<String, AccountProgress> progress);
+
+  /**
+   * Drops the accounts of the given partition that the ring assigns elsewhere.
+   *
+   * @see Partition#dropUnowned(HashRing)
+   */
+  public int dropUnowned(String partition, HashRing ring);
+
+  /**
+   * Starts rotating the key of an account on the given partition.
+   *
+   * @see Partition#rotate(String, byte[], long)
+   */
+  public boolean rotate(String partition, String account, byte[] newKey, long expiry);
+
+  /**
+   * Ends the expired key rotations of the given partition.
+   *
+   * @see Partition#expireRotations(long)
+   */
+  public int expireRotations(String partition, long epochSeconds);
+}
@@ -0,0 +1,193 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp.cluster;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import net.revelc.code.otp.Base32;
+import net.revelc.code.otp.Options;
+
+/**
+ * Verifies codes across partitions, routing each account to the partition that owns it on a
+ * {@link HashRing}. When a partition is added, the accounts it takes over are copied to it before
+ * the new ring is used, and only dropped from their previous partitions afterwards, so they can be
+ * verified throughout the move.
+ *
+ * <p>
+ * Enrollments and rotations wait for a move to complete, so none is made on a partition after its
+ * accounts were copied out. Verifications only wait for the end of the move, while the replay
+ * counters and rotation state of the moved accounts are brought over again, the new ring is
+ * switched to, and the moved accounts are dropped from their previous partitions; so a code
+ * accepted by the previous owner during the copy can't be accepted again by the new one, and a key
+ * retired there by a rotation ending isn't accepted again either.
+ */
+public class PartitionedVerifier {
+
+  private final PartitionTransport transport;
+  private final Clock clock;
+  private final int window;
+  private volatile HashRing ring;
+  // held shared to change accounts, and exclusively to move them
+  private final ReadWriteLock membership = new ReentrantReadWriteLock();
+  // held shared to verify, and exclusively to switch rings
+  private final ReadWriteLock routing = new ReentrantReadWriteLock();
+
+  /**
+   * @param transport how to reach the partitions
+   * @param ring the initial partitions
+   * @param window the number of adjacent time steps to also accept
+   */
+  public PartitionedVerifier(PartitionTransport transport, HashRing ring, int window) {
+    this(transport, ring, window, Clock.systemUTC());
+  }
+
+  public PartitionedVerifier(PartitionTransport transport, HashRing ring, int window,
+      Clock clock) {
+    this.transport = transport;
+    this.ring = ring;
+    this.window = window;
+    this.clock = clock;
+  }
+
+  /**
+   * Stores an account on the partition owning it.
+   *
+   * @param account the account
+   * @param options the options giving the algorithm, digits and time step of the account
+   * @param base32Key the base32 encoded key
+   */
+  public void enroll(String account, Options options, String base32Key) {
+    var key = Base32.decode(base32Key);
+    membership.readLock().lock();
+    try {
+      transport.enroll(ring.ownerOf(account), new AccountState(account, options.getAlgorithm(),
+          options.getDigits(), options.getTimestep(), key, 0));
+    } finally {
+      membership.readLock().unlock();
+      Arrays.fill(key, (byte) 0);
+    }
+  }
+
+  /**
+   * Verifies a code for an account on the partition owning it, at the current time.
+   *
+   * @param account the account
+   * @param code the code
+   * @return true if the code is valid, and wasn't used before
+   */
+  public boolean verify(String account, String code) {
+    routing.readLock().lock();
+    try {
+      return transport.verify(ring.ownerOf(account), account, code,
+          clock.instant().getEpochSecond(), window);
+    } finally {
+      routing.readLock().unlock();
+    }
+  }
+
+  /**
+   * Starts rotating the key of an account. Codes from both the current and the new key are
+   * accepted during the grace period, or until the first code from the new key is verified.
+   *
+   * @param account the account
+   * @param base32Key the new base32 encoded key
+   * @param grace how long the current key is still accepted for
+   * @return false if the account isn't enrolled
+   */
+  public boolean rotate(String account, String base32Key, Duration grace) {
+    membership.readLock().lock();
+    try {
+      // the transport wipes the key once it has stored it
+      return transport.rotate(ring.ownerOf(account), account, Base32.decode(base32Key),
+          clock.instant().plus(grace).getEpochSecond());
+    } finally {
+      membership.readLock().unlock();
+    }
+  }
+
+  /**
+   * Ends the key rotations whose grace period is over on all the partitions. This should be
+   * called periodically, for instance once per minute.
+   *
+   * @return the number of rotations ended
+   */
+  public int expireRotations() {
+    long now = clock.instant().getEpochSecond();
+    int expired = 0;
+    membership.readLock().lock();
+    try {
+      for (String partition : ring.getPartitions()) {
+        expired += transport.expireRotations(partition, now);
+      }
+    } finally {
+      membership.readLock().unlock();
+    }
+    return expired;
+  }
+
+  /**
+   * Adds a partition, which must already be reachable through the transport, and moves to it the
+   * accounts it now owns.
+   *
+   * @param partition the partition name
+   */
+  public void addPartition(String partition) {
+    membership.writeLock().lock();
+    try {
+      var oldRing = ring;
+      var newRing = oldRing.with(partition);
+      for (String existing : oldRing.getPartitions()) {
+        for (AccountState state : transport.exportUnowned(existing, newRing)) {
+          transport.enroll(newRing.ownerOf(state.getId()), state);
+        }
+      }
+      routing.writeLock().lock();
+      try {
+        // the previous owners kept accepting codes during the copy, which may also have ended
+        // rotations there, by confirming or outliving them
+        for (String existing : oldRing.getPartitions()) {
+          var byOwner = new HashMap<String, Map<String, AccountProgress>>();
+          transport.exportProgress(existing, newRing).forEach((account, progress) -> byOwner
+              .computeIfAbsent(newRing.ownerOf(account), owner -> new HashMap<>())
+              .put(account, progress));
+          byOwner.forEach(transport::mergeProgress);
+        }
+        ring = newRing;
+        for (String existing : oldRing.getPartitions()) {
+          transport.dropUnowned(existing, newRing);
+        }
+      } finally {
+        routing.writeLock().unlock();
+      }
+    } finally {
+      membership.writeLock().unlock();
+    }
+  }
+
+  public Set<String> getPartitions() {
+    return ring.getPartitions();
+  }
+
+  public HashRing getRing() {
+    return ring;
+  }
+}
@@ -0,0 +1,393 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp.totp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Clock;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import net.revelc.code.otp.Base32;
+import net.revelc.code.otp.KeyArena;
+
+/**
+ * Stores the keys of many accounts sealed with AES-GCM, using the account name as associated data
+ * so a sealed key can't be moved to another account. Keys are only decrypted when they are needed.
+ *
+ * <p>
+ * Codes are verified with {@link #verifyTotp(String, String, int)}, which keeps the decrypted keys
+ * of the most recently used accounts in a size-bounded, least-recently-used cache. The cached keys
+ * live off the heap, in a {@link KeyArena}, and never leave the store; they are decrypted and
+ * decoded only into arrays that are wiped once the key is in the arena, and keys evicted from the
+ * cache are wiped. {@link #getKey(String)}, which must return the key as a string, always decrypts
+ * it, and the string it returns is a copy on the heap that can't be wiped, so it should be avoided
+ * on hot paths.
+ */
+public class EncryptedTotpKeyStore {
+
+  private static final String CIPHER = "AES/GCM/NoPadding";
+  private static final int IV_LENGTH = 12;
+  private static final int TAG_BITS = 128;
+  private static final int FILE_MAGIC = 0x544b5331; // TKS1
+  // the configuration of the codes of TotpGenerator
+  private static final String ALGORITHM = "HmacSHA1";
+  private static final int DIGITS = 6;
+  private static final int TIMESTEP = 30;
+
+  private final SecretKey masterKey;
+  private final Clock clock;
+  private final SecureRandom random = new SecureRandom();
+  private final Map<String, byte[]> sealed = new ConcurrentHashMap<>();
+  private final KeyArena arena = new KeyArena(ALGORITHM);
+  private final Map<String, CachedKey> cache;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * @param masterKey the AES key used to seal the stored keys
+   * @param cacheSize the maximum number of decrypted keys to keep in memory
+   */
+  public EncryptedTotpKeyStore(SecretKey masterKey, int cacheSize) {
+    this(masterKey, cacheSize, Clock.systemUTC());
+  }
+
+  /**
+   * @param masterKey the AES key used to seal the stored keys
+   * @param cacheSize the maximum number of decrypted keys to keep in memory
+   * @param clock the clock used to verify codes
+   */
+  public EncryptedTotpKeyStore(SecretKey masterKey, int cacheSize, Clock clock) {
+    this.masterKey = Objects.requireNonNull(masterKey, "Master key must not be null");
+    this.clock = Objects.requireNonNull(clock, "Clock must not be null");
+    if (cacheSize < 0) {
+      throw new IllegalArgumentException("Cache size must not be negative");
+    }
+    this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedKey> eldest) {
+        if (size() > cacheSize) {
+          eldest.getValue().evict();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Returns the key of an account, decrypting it. The cache isn't used, as the returned string is
+   * a copy of the key that can't be wiped.
+   *
+   * @param account the account
+   * @return the key, or null if the account has no key
+   */
+  public String getKey(String account) {
+    var blob = sealed.get(account);
+    if (blob == null) {
+      return null;
+    }
+    var plain = open(account, blob);
+    try {
+      return new String(plain, StandardCharsets.UTF_8);
+    } finally {
+      Arrays.fill(plain, (byte) 0);
+    }
+  }
+
+  /**
+   * Checks a code like {@link TotpGenerator#verifyTotp(String, int)} would, with the key of the
+   * given account, decrypting the key only if it isn't already cached.
+   *
+   * @param account the account
+   * @param code the code provided by the client
+   * @param window the number of adjacent time steps to also accept
+   * @return true if the account has a key, and the code matches any of the accepted time steps
+   */
+  public boolean verifyTotp(String account, String code, int window) {
+    if (code == null || code.length() != DIGITS) {
+      return false;
+    }
+    var expected = code.getBytes(StandardCharsets.US_ASCII);
+    long counter = clock.instant().getEpochSecond() / TIMESTEP;
+    var key = pin(account);
+    if (key == null) {
+      return false;
+    }
+    try {
+      boolean matched = false;
+      for (long c = counter - window; c <= counter + window; c++) {
+        // no early exit, so timing doesn't reveal which step matched
+        matched |= MessageDigest.isEqual(expected,
+            arena.generateOtp(key.slot, c, DIGITS).getBytes(StandardCharsets.US_ASCII));
+      }
+      return matched;
+    } finally {
+      synchronized (cache) {
+        key.unpin();
+      }
+    }
+  }
+
+  // returns the cached key of an account, decrypting it if needed, and pinned so it isn't freed
+  // while in use; or null if the account has no key
+  private CachedKey pin(String account) {
+    synchronized (cache) {
+      var key = cache.get(account);
+      if (key != null) {
+        hits.increment();
+        key.pins++;
+        return key;
+      }
+    }
+    misses.increment();
+    while (true) {
+      var blob = sealed.get(account);
+      if (blob == null) {
+        return null;
+      }
+      var plain = open(account, blob);
+      byte[] raw;
+      try {
+        // decoding a String would leave copies of the key on the heap that can't be wiped
+        raw = Base32.decode(plain);
+      } finally {
+        Arrays.fill(plain, (byte) 0);
+      }
+      try {
+        synchronized (cache) {
+          var key = cache.get(account);
+          // don't cache a key that was replaced meanwhile, but try again with the new one
+          if (key == null && sealed.get(account) == blob) {
+            key = new CachedKey(arena.store(raw));
+            key.pins++;
+            cache.put(account, key);
+          } else if (key != null) {
+            key.pins++;
+          }
+          if (key != null) {
+            return key;
+          }
+        }
+      } finally {
+        Arrays.fill(raw, (byte) 0);
+      }
+    }
+  }
+
+  /**
+   * A decrypted key in the arena. Verifications pin it while they use it, and a key evicted while
+   * pinned is only freed once the last verification using it is done. Guarded by the cache lock.
+   */
+  private class CachedKey {
+    private final int slot;
+    private int pins = 0;
+    private boolean evicted = false;
+
+    private CachedKey(int slot) {
+      this.slot = slot;
+    }
+
+    private void evict() {
+      evicted = true;
+      if (pins == 0) {
+        arena.free(slot);
+      }
+    }
+
+    private void unpin() {
+      if (--pins == 0 && evicted) {
+        arena.free(slot);
+      }
+    }
+  }
+
+  /**
+   * Seals and stores the key of an account, replacing any previous one.
+   *
+   * @param account the account
+   * @param key the key
+   */
+  public void setKey(String account, String key) {
+    var plain = key.getBytes(StandardCharsets.UTF_8);
+    try {
+      sealed.put(account, seal(account, plain));
+    } finally {
+      Arrays.fill(plain, (byte) 0);
+    }
+    evict(account);
+  }
+
+  /**
+   * Removes the key of an account.
+   *
+   * @param account the account
+   */
+  public void removeKey(String account) {
+    sealed.remove(account);
+    evict(account);
+  }
+
+  /**
+   * Returns a view of the key of a single account.
+   *
+   * @param account the account
+   * @return the key view
+   */
+  public TotpKey forAccount(String account) {
+    return new TotpKey() {
+      @Override
+      public String getKey() {
+        return EncryptedTotpKeyStore.this.getKey(account);
+      }
+
+      @Override
+      public void setKey(String key) {
+        EncryptedTotpKeyStore.this.setKey(account, key);
+      }
+    };
+  }
+
+  /**
+   * Wipes and drops all the decrypted keys.
+   */
+  public void clearCache() {
+    synchronized (cache) {
+      cache.values().forEach(CachedKey::evict);
+      cache.clear();
+    }
+  }
+
+  /**
+   * @return the number of decrypted keys in memory, including evicted ones still in use
+   */
+  int cachedKeys() {
+    synchronized (cache) {
+      return arena.size();
+    }
+  }
+
+  /**
+   * @return the number of lookups that were answered from the cache
+   */
+  public long getCacheHits() {
+    return hits.sum();
+  }
+
+  /**
+   * @return the number of lookups that were not answered from the cache
+   */
+  public long getCacheMisses() {
+    return misses.sum();
+  }
+
+  /**
+   * Writes the sealed keys to a file. The keys are never written decrypted.
+   *
+   * @param file the file to write
+   */
+  public void save(Path file) throws IOException {
+    var tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+      out.writeInt(FILE_MAGIC);
+      var entries = Map.copyOf(sealed);
+      out.writeInt(entries.size());
+      for (Map.Entry<String, byte[]> e : entries.entrySet()) {
+        out.writeUTF(e.getKey());
+        out.writeInt(e.getValue().length);
+        out.write(e.getValue());
+      }
+    }
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Reads sealed keys from a file written by {@link #save(Path)}, adding them to this store. The
+   * keys are not decrypted until they are used.
+   *
+   * @param file the file to read
+   */
+  public void load(Path file) throws IOException {
+    try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      if (in.readInt() != FILE_MAGIC) {
+        throw new IOException("Not a key store file: " + file);
+      }
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        var account = in.readUTF();
+        var blob = new byte[in.readInt()];
+        in.readFully(blob);
+        sealed.put(account, blob);
+        evict(account);
+      }
+    }
+  }
+
+  private void evict(String account) {
+    synchronized (cache) {
+      var key = cache.remove(account);
+      if (key != null) {
+        key.evict();
+      }
+    }
+  }
+
+  private byte[] seal(String account, byte[] plain) {
+    try {
+      var iv = new byte[IV_LENGTH];
+      random.nextBytes(iv);
+      var cipher = Cipher.getInstance(CIPHER);
+      cipher.init(Cipher.ENCRYPT_MODE, masterKey, new GCMParameterSpec(TAG_BITS, iv));
+      cipher.updateAAD(account.getBytes(StandardCharsets.UTF_8));
+      var blob = Arrays.copyOf(iv, IV_LENGTH + cipher.getOutputSize(plain.length));
+      cipher.doFinal(plain, 0, plain.length, blob, IV_LENGTH);
+      return blob;
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Unable to seal key for " + account, e);
+    }
+  }
+
+  private byte[] open(String account, byte[] blob) {
+    try {
+      var cipher = Cipher.getInstance(CIPHER);
+      cipher.init(Cipher.DECRYPT_MODE, masterKey,
+          new GCMParameterSpec(TAG_BITS, blob, 0, IV_LENGTH));
+      cipher.updateAAD(account.getBytes(StandardCharsets.UTF_8));
+      return cipher.doFinal(blob, IV_LENGTH, blob.length - IV_LENGTH);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Unable to open key for " + account, e);
+    }
+  }
+}
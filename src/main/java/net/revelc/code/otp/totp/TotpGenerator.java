@@ -15,10 +15,15 @@
 package net.revelc.code.otp.totp;
 
 import java.math.BigInteger;
-import java.time.Instant;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
 
 import net.revelc.code.otp.Options;
 import net.revelc.code.otp.Otp;
+import net.revelc.code.otp.OtpKernels;
 
 /**
  * Generator for TOTP
@@ -28,7 +33,11 @@ public class TotpGenerator extends Otp {
   private String key;
 
   public TotpGenerator(String key) {
-    super(totpOptions());
+    this(key, Clock.systemUTC());
+  }
+
+  public TotpGenerator(String key, Clock clock) {
+    super(totpOptions(), clock);
     this.key = key;
   }
 
@@ -37,22 +46,72 @@ public class TotpGenerator extends Otp {
   }
 
   public Totp generateTotp() {
+    return generateTotps(1).get(0);
+  }
 
-    BigInteger bigCounter = getCounter();
-    int counter = bigCounter.intValue();
-    String otp = generateOtp(key, bigCounter);
-    long nextSeconds = (counter + 1) * 30;
-    long currentSeconds = Instant.now().getEpochSecond();
-    int diff = (int) (nextSeconds - currentSeconds);
-    return new Totp(otp, diff);
+  /**
+   * Generates the codes for the current time step and the steps that follow it, so clients can
+   * prefetch upcoming codes. All the codes and their validity bounds are computed from a single
+   * reading of the clock, with a single HMAC context.
+   *
+   * @param count the number of consecutive time steps, starting with the current one
+   * @return the codes, in time order
+   */
+  public List<Totp> generateTotps(int count) {
+    if (count <= 0) {
+      throw new IllegalArgumentException("Count must be strictly positive");
+    }
+    long nowMillis = clock.millis();
+    long stepMillis = options.getTimestep() * 1000L;
+    long counter = Math.floorDiv(nowMillis, stepMillis);
+    var mac = newMac(key);
+    var message = new byte[OtpKernels.MESSAGE_LENGTH];
+    var totps = new ArrayList<Totp>(count);
+    for (long c = counter; c < counter + count; c++) {
+      totps.add(new Totp(generateOtp(mac, message, c), c * stepMillis, (c + 1) * stepMillis,
+          nowMillis));
+    }
+    return totps;
   }
 
   /**
-   * Simple class that combines a password string along with its remaining life, in seconds
+   * Checks the given code against the current time step and up to {@code window} steps on either
+   * side of it, to tolerate clock drift between the client and the server.
+   *
+   * @param code the code provided by the client
+   * @param window the number of adjacent time steps to also accept
+   * @return true if the code matches any of the accepted time steps
+   */
+  public boolean verifyTotp(String code, int window) {
+    if (code == null || code.length() != options.getDigits()) {
+      return false;
+    }
+    var expected = code.getBytes(StandardCharsets.US_ASCII);
+    long counter = getCounter().longValueExact();
+    var mac = newMac(key);
+    var message = new byte[OtpKernels.MESSAGE_LENGTH];
+    boolean matched = false;
+    for (long c = counter - window; c <= counter + window; c++) {
+      // no early exit, so timing doesn't reveal which step matched
+      matched |= MessageDigest.isEqual(expected,
+          generateOtp(mac, message, c).getBytes(StandardCharsets.US_ASCII));
+    }
+    return matched;
+  }
+
+  String generateOtp(long counter) {
+    return generateOtp(key, BigInteger.valueOf(counter));
+  }
+
+  /**
+   * Simple class that combines a password string along with its validity bounds, and its remaining
+   * life, in seconds, at the time it was generated
    */
   public static class Totp {
     private String otp;
     private int secondsRemaining;
+    private long validFromMillis;
+    private long validUntilMillis;
 
     public String getOtp() {
       return otp;
@@ -62,9 +121,25 @@ public class TotpGenerator extends Otp {
       return secondsRemaining;
     }
 
-    private Totp(String otp, int secondsRemaining) {
+    /**
+     * @return the first millisecond since the epoch at which the password is valid
+     */
+    public long getValidFromMillis() {
+      return validFromMillis;
+    }
+
+    /**
+     * @return the millisecond since the epoch at which the password stops being valid (exclusive)
+     */
+    public long getValidUntilMillis() {
+      return validUntilMillis;
+    }
+
+    private Totp(String otp, long validFromMillis, long validUntilMillis, long nowMillis) {
       this.otp = otp;
-      this.secondsRemaining = secondsRemaining;
+      this.validFromMillis = validFromMillis;
+      this.validUntilMillis = validUntilMillis;
+      this.secondsRemaining = (int) (validUntilMillis / 1000 - nowMillis / 1000);
     }
   }
 }
@@ -0,0 +1,280 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp.totp;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes TOTP code rotations to subscribers, instead of having each of them poll a
+ * {@link TotpGenerator}. A single scheduler thread wakes up once per time step, computes the new
+ * code once for each distinct key, and hands it to every subscription of that key, as far as its
+ * outstanding demand allows.
+ *
+ * <p>
+ * A subscriber without outstanding demand only keeps the most recent rotation, since an older code
+ * is useless once it has been replaced. A subscriber that throws from {@code onNext} is cancelled,
+ * and notified with {@code onError}, while the others keep receiving rotations.
+ */
+public class TotpPublisher implements AutoCloseable {
+
+  private final int timestep;
+  private final Clock clock;
+  private final ScheduledExecutorService scheduler;
+  private final boolean ownsScheduler;
+  private final Set<KeySubscription> subscriptions = ConcurrentHashMap.newKeySet();
+  private ScheduledFuture<?> nextTick;
+  private boolean closed = false;
+
+  public TotpPublisher() {
+    this(30);
+  }
+
+  /**
+   * @param timestep the time step, in seconds, shared by all the keys of this publisher
+   */
+  public TotpPublisher(int timestep) {
+    this(timestep, Clock.systemUTC(), Executors.newSingleThreadScheduledExecutor(r -> {
+      var t = new Thread(r, "totp-publisher");
+      t.setDaemon(true);
+      return t;
+    }), true);
+  }
+
+  /**
+   * @param timestep the time step, in seconds, shared by all the keys of this publisher
+   * @param clock the clock the codes are computed from
+   * @param scheduler the scheduler that runs the rotations, which isn't shut down on close
+   */
+  public TotpPublisher(int timestep, Clock clock, ScheduledExecutorService scheduler) {
+    this(timestep, clock, scheduler, false);
+  }
+
+  private TotpPublisher(int timestep, Clock clock, ScheduledExecutorService scheduler,
+      boolean ownsScheduler) {
+    if (timestep <= 0) {
+      throw new IllegalArgumentException("Time step must be strictly positive");
+    }
+    this.timestep = timestep;
+    this.clock = Objects.requireNonNull(clock, "Clock must not be null");
+    this.scheduler = Objects.requireNonNull(scheduler, "Scheduler must not be null");
+    this.ownsScheduler = ownsScheduler;
+  }
+
+  /**
+   * Returns a publisher of the code rotations for the given key. The first rotation delivered to a
+   * new subscriber is the code that is currently valid.
+   *
+   * @param key the base32 encoded key
+   * @return the publisher for that key
+   */
+  public Flow.Publisher<Rotation> forKey(String key) {
+    Objects.requireNonNull(key, "Key must not be null");
+    var generator = new TotpGenerator(key, clock);
+    return subscriber -> subscribe(key, generator, subscriber);
+  }
+
+  private void subscribe(String key, TotpGenerator generator,
+      Flow.Subscriber<? super Rotation> subscriber) {
+    Objects.requireNonNull(subscriber, "Subscriber must not be null");
+    var subscription = new KeySubscription(key, generator, subscriber);
+    subscriber.onSubscribe(subscription);
+    synchronized (this) {
+      if (closed) {
+        subscription.complete();
+        return;
+      }
+      subscriptions.add(subscription);
+      if (nextTick == null) {
+        scheduleTick(clock.millis());
+      }
+    }
+    long counter = clock.millis() / 1000 / timestep;
+    offer(subscription, rotation(generator, counter));
+  }
+
+  // a subscriber that fails is cut off, without affecting the others
+  private static void offer(KeySubscription subscription, Rotation rotation) {
+    try {
+      subscription.offer(rotation);
+    } catch (RuntimeException e) {
+      subscription.fail(e);
+    }
+  }
+
+  private Rotation rotation(TotpGenerator generator, long counter) {
+    return new Rotation(generator.generateOtp(counter),
+        Instant.ofEpochSecond((counter + 1) * timestep));
+  }
+
+  // must be called while holding the lock on this
+  private void scheduleTick(long nowMillis) {
+    long stepMillis = timestep * 1000L;
+    long delay = stepMillis - nowMillis % stepMillis;
+    nextTick = scheduler.schedule(this::tick, delay, TimeUnit.MILLISECONDS);
+  }
+
+  private void tick() {
+    long now = clock.millis();
+    // round to the nearest boundary, so a slightly early wake-up doesn't repeat the previous code
+    long counter = (now + 500) / 1000 / timestep;
+    try {
+      Map<String, Rotation> rotations = new HashMap<>();
+      for (KeySubscription s : subscriptions) {
+        offer(s, rotations.computeIfAbsent(s.key, k -> rotation(s.generator, counter)));
+      }
+    } finally {
+      synchronized (this) {
+        if (closed || subscriptions.isEmpty()) {
+          nextTick = null;
+        } else {
+          scheduleTick(Math.max(now, counter * timestep * 1000L + 1));
+        }
+      }
+    }
+  }
+
+  /**
+   * Completes all subscriptions, and stops the scheduler if it was created by this publisher.
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (nextTick != null) {
+        nextTick.cancel(false);
+        nextTick = null;
+      }
+    }
+    if (ownsScheduler) {
+      scheduler.shutdown();
+    }
+    for (KeySubscription s : subscriptions) {
+      s.complete();
+    }
+    subscriptions.clear();
+  }
+
+  /**
+   * A code along with the instant at which it stops being valid
+   */
+  public static class Rotation {
+    private final String otp;
+    private final Instant validUntil;
+
+    private Rotation(String otp, Instant validUntil) {
+      this.otp = otp;
+      this.validUntil = validUntil;
+    }
+
+    public String getOtp() {
+      return otp;
+    }
+
+    public Instant getValidUntil() {
+      return validUntil;
+    }
+  }
+
+  private class KeySubscription implements Flow.Subscription {
+    private final String key;
+    private final TotpGenerator generator;
+    private final Flow.Subscriber<? super Rotation> subscriber;
+    private long demand = 0;
+    private Rotation pending;
+    private Instant lastValidUntil = Instant.MIN;
+    private boolean done = false;
+
+    private KeySubscription(String key, TotpGenerator generator,
+        Flow.Subscriber<? super Rotation> subscriber) {
+      this.key = key;
+      this.generator = generator;
+      this.subscriber = subscriber;
+    }
+
+    @Override
+    public synchronized void request(long n) {
+      if (done) {
+        return;
+      }
+      if (n <= 0) {
+        cancel();
+        subscriber.onError(new IllegalArgumentException("Requested demand must be positive"));
+        return;
+      }
+      demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+      drain();
+    }
+
+    @Override
+    public synchronized void cancel() {
+      done = true;
+      pending = null;
+      subscriptions.remove(this);
+    }
+
+    private synchronized void offer(Rotation rotation) {
+      // the initial offer can race with a tick; never go back to an older code
+      if (!done && rotation.validUntil.isAfter(lastValidUntil)) {
+        lastValidUntil = rotation.validUntil;
+        pending = rotation;
+        drain();
+      }
+    }
+
+    private synchronized void fail(Throwable cause) {
+      if (!done) {
+        cancel();
+        try {
+          subscriber.onError(cause);
+        } catch (RuntimeException e) {
+          // onError must not throw, and the subscription is already cancelled anyway
+        }
+      }
+    }
+
+    private synchronized void complete() {
+      if (!done) {
+        done = true;
+        pending = null;
+        subscriber.onComplete();
+      }
+    }
+
+    private void drain() {
+      if (pending != null && demand > 0) {
+        var next = pending;
+        pending = null;
+        if (demand != Long.MAX_VALUE) {
+          demand--;
+        }
+        subscriber.onNext(next);
+      }
+    }
+  }
+}
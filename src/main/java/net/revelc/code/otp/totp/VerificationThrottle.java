@@ -0,0 +1,252 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp.totp;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Brute-force protection placed in front of TOTP verification. Each account and each source (for
+ * example, a client address) gets its own token bucket, and consecutive failures for an account
+ * lock it out for an exponentially growing duration. Requests that are throttled are rejected
+ * before any HMAC is computed, so the cost of an attack is bounded by the configured rates.
+ *
+ * <p>
+ * Buckets are lock-free: the whole state of a bucket is packed into two longs that are updated
+ * with compare-and-set. Buckets that have been idle for a while are evicted.
+ */
+public class VerificationThrottle {
+
+  /**
+   * A token bucket configuration
+   */
+  public static class Limit {
+    private final int burst;
+    private final double perSecond;
+
+    /**
+     * @param burst the maximum number of attempts that can be made at once
+     * @param perSecond the rate at which attempts are replenished
+     */
+    public Limit(int burst, double perSecond) {
+      if (burst <= 0 || burst > MAX_TOKENS / 1000 || !(perSecond > 0)) {
+        throw new IllegalArgumentException("Invalid limit: " + burst + " per " + perSecond);
+      }
+      this.burst = burst;
+      this.perSecond = perSecond;
+    }
+  }
+
+  // low bits of the token state hold milli-tokens, high bits the time of the last refill
+  private static final int TOKEN_BITS = 24;
+  private static final long MAX_TOKENS = (1L << TOKEN_BITS) - 1;
+  // low bits of the lockout state hold the failure count, high bits the end of the lockout
+  private static final int FAILURE_BITS = 8;
+  private static final long MAX_FAILURES = (1L << FAILURE_BITS) - 1;
+  private static final int EVICTION_INTERVAL = 4096;
+
+  private static final VarHandle TOKENS;
+  private static final VarHandle LOCKOUT;
+  static {
+    try {
+      var lookup = MethodHandles.lookup();
+      TOKENS = lookup.findVarHandle(Bucket.class, "tokens", long.class);
+      LOCKOUT = lookup.findVarHandle(Bucket.class, "lockout", long.class);
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private final Limit accountLimit;
+  private final Limit sourceLimit;
+  private final int freeFailures;
+  private final long baseLockoutMillis;
+  private final long maxLockoutMillis;
+  private final long idleMillis;
+  private final LongSupplier clock;
+  private final long origin;
+  private final ConcurrentHashMap<String, Bucket> accounts = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Bucket> sources = new ConcurrentHashMap<>();
+  private final AtomicLong calls = new AtomicLong();
+
+  /**
+   * @param accountLimit the limit for each account
+   * @param sourceLimit the limit for each source
+   * @param freeFailures the number of consecutive failures allowed before the lockout begins
+   * @param baseLockout the first lockout duration, doubled by each further failure
+   * @param maxLockout the maximum lockout duration
+   */
+  public VerificationThrottle(Limit accountLimit, Limit sourceLimit, int freeFailures,
+      Duration baseLockout, Duration maxLockout) {
+    this(accountLimit, sourceLimit, freeFailures, baseLockout, maxLockout,
+        () -> System.nanoTime() / 1_000_000);
+  }
+
+  VerificationThrottle(Limit accountLimit, Limit sourceLimit, int freeFailures,
+      Duration baseLockout, Duration maxLockout, LongSupplier clock) {
+    this.accountLimit = Objects.requireNonNull(accountLimit);
+    this.sourceLimit = Objects.requireNonNull(sourceLimit);
+    if (freeFailures < 0 || baseLockout.isNegative() || maxLockout.compareTo(baseLockout) < 0) {
+      throw new IllegalArgumentException("Invalid lockout configuration");
+    }
+    this.freeFailures = freeFailures;
+    this.baseLockoutMillis = baseLockout.toMillis();
+    this.maxLockoutMillis = maxLockout.toMillis();
+    // an idle bucket can be forgotten once it would be full again anyway
+    this.idleMillis = Math.max(maxLockoutMillis, (long) Math.ceil(1000
+        * Math.max(accountLimit.burst / accountLimit.perSecond,
+            sourceLimit.burst / sourceLimit.perSecond)));
+    this.clock = clock;
+    this.origin = clock.getAsLong();
+  }
+
+  /**
+   * Verifies a code, unless the account or the source is being throttled.
+   *
+   * @param account the account the code is for
+   * @param source where the attempt comes from
+   * @param generator the generator holding the account's key
+   * @param code the code to check
+   * @param window the number of adjacent time steps to also accept
+   * @return true only if the attempt was allowed and the code is valid
+   */
+  public boolean verify(String account, String source, TotpGenerator generator, String code,
+      int window) {
+    if (!tryAcquire(account, source)) {
+      return false;
+    }
+    boolean valid = generator.verifyTotp(code, window);
+    if (valid) {
+      recordSuccess(account);
+    } else {
+      recordFailure(account);
+    }
+    return valid;
+  }
+
+  /**
+   * Takes a token for both the account and the source.
+   *
+   * @return false if the attempt must be rejected
+   */
+  public boolean tryAcquire(String account, String source) {
+    long now = now();
+    if (calls.incrementAndGet() % EVICTION_INTERVAL == 0) {
+      evictIdle();
+    }
+    var accountBucket = accounts.computeIfAbsent(account, k -> new Bucket(accountLimit, now));
+    if (accountBucket.lockedUntil() > now) {
+      return false;
+    }
+    var sourceBucket = sources.computeIfAbsent(source, k -> new Bucket(sourceLimit, now));
+    return sourceBucket.take(sourceLimit, now) && accountBucket.take(accountLimit, now);
+  }
+
+  /**
+   * Records a failed verification, locking the account out if it failed too many times in a row.
+   */
+  public void recordFailure(String account) {
+    long now = now();
+    var bucket = accounts.computeIfAbsent(account, k -> new Bucket(accountLimit, now));
+    long prev;
+    long next;
+    do {
+      prev = bucket.lockout;
+      long failures = Math.min(MAX_FAILURES, (prev & MAX_FAILURES) + 1);
+      long lockedUntil = prev >>> FAILURE_BITS;
+      if (failures > freeFailures) {
+        int doublings = (int) Math.min(62, failures - freeFailures - 1);
+        long duration = baseLockoutMillis > maxLockoutMillis >> doublings ? maxLockoutMillis
+            : baseLockoutMillis << doublings;
+        lockedUntil = Math.max(lockedUntil, now + duration);
+      }
+      next = lockedUntil << FAILURE_BITS | failures;
+    } while (!LOCKOUT.compareAndSet(bucket, prev, next));
+  }
+
+  /**
+   * Records a successful verification, clearing the account's failure count.
+   */
+  public void recordSuccess(String account) {
+    var bucket = accounts.get(account);
+    if (bucket != null) {
+      long prev;
+      do {
+        prev = bucket.lockout;
+      } while ((prev & MAX_FAILURES) != 0
+          && !LOCKOUT.compareAndSet(bucket, prev, prev & ~MAX_FAILURES));
+    }
+  }
+
+  /**
+   * Forgets the buckets that have been idle long enough to be full again, and whose lockout has
+   * expired. This is done periodically by {@link #tryAcquire(String, String)}, but can also be
+   * called explicitly.
+   */
+  public void evictIdle() {
+    long now = now();
+    accounts.values().removeIf(b -> b.isIdle(now, idleMillis));
+    sources.values().removeIf(b -> b.isIdle(now, idleMillis));
+  }
+
+  int size() {
+    return accounts.size() + sources.size();
+  }
+
+  private long now() {
+    return clock.getAsLong() - origin;
+  }
+
+  private static class Bucket {
+    // refill time << TOKEN_BITS | milli-tokens
+    private volatile long tokens;
+    // lockout end << FAILURE_BITS | consecutive failures
+    private volatile long lockout;
+
+    private Bucket(Limit limit, long now) {
+      this.tokens = now << TOKEN_BITS | limit.burst * 1000L;
+    }
+
+    private boolean take(Limit limit, long now) {
+      long prev;
+      long next;
+      do {
+        prev = tokens;
+        long last = prev >>> TOKEN_BITS;
+        long elapsed = Math.max(0, now - last);
+        long available = Math.min(limit.burst * 1000L,
+            (prev & MAX_TOKENS) + (long) (elapsed * limit.perSecond));
+        if (available < 1000) {
+          return false;
+        }
+        next = Math.max(now, last) << TOKEN_BITS | (available - 1000);
+      } while (!TOKENS.compareAndSet(this, prev, next));
+      return true;
+    }
+
+    private long lockedUntil() {
+      return lockout >>> FAILURE_BITS;
+    }
+
+    private boolean isIdle(long now, long idleMillis) {
+      return now - (tokens >>> TOKEN_BITS) > idleMillis && lockedUntil() <= now;
+    }
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class AccountRegistryTest {
+
+  @TempDir
+  Path dir;
+
+  @Test
+  void testConcurrentRegistrationAndLookup() throws InterruptedException {
+    var registry = new AccountRegistry();
+    int count = 20_000; // several pages, and several rehashes of the table
+    var failure = new AtomicReference<String>();
+    var done = new AtomicBoolean();
+    var readers = new Thread[4];
+    for (int r = 0; r < readers.length; r++) {
+      readers[r] = new Thread(() -> {
+        while (!done.get()) {
+          int size = registry.size();
+          for (int slot = Math.max(0, size - 100); slot < size; slot++) {
+            var id = "account" + slot;
+            if (registry.slotOf(id) != slot || registry.getKeyRef(slot) != slot * 2
+                || registry.getTimestep(slot) != 30 + slot % 30) {
+              failure.compareAndSet(null, "inconsistent slot " + slot);
+            }
+          }
+          if (registry.slotOf("missing") != -1) {
+            failure.compareAndSet(null, "found a missing account");
+          }
+        }
+      });
+      readers[r].start();
+    }
+    for (int slot = 0; slot < count; slot++) {
+      assertEquals(slot,
+          registry.register("account" + slot, "HmacSHA256", 6, 30 + slot % 30, slot * 2));
+    }
+    done.set(true);
+    for (Thread reader : readers) {
+      reader.join();
+    }
+    assertNull(failure.get());
+    assertEquals(count, registry.size());
+  }
+
+  @Test
+  void testReRegistrationReplacesConfigAtomically() throws InterruptedException {
+    var registry = new AccountRegistry();
+    int slot = registry.register("a", "HmacSHA1", 6, 30, 0);
+    var done = new AtomicBoolean();
+    var torn = new AtomicInteger();
+    var reader = new Thread(() -> {
+      while (!done.get()) {
+        long config = registry.getConfig(slot);
+        boolean first = AccountRegistry.configAlgorithm(config).equals("HmacSHA1")
+            && AccountRegistry.configDigits(config) == 6
+            && AccountRegistry.configTimestep(config) == 30;
+        boolean second = AccountRegistry.configAlgorithm(config).equals("HmacSHA512")
+            && AccountRegistry.configDigits(config) == 8
+            && AccountRegistry.configTimestep(config) == 60;
+        if (!first && !second) {
+          torn.incrementAndGet();
+        }
+      }
+    });
+    reader.start();
+    for (int i = 0; i < 200_000; i++) {
+      if (i % 2 == 0) {
+        registry.register("a", "HmacSHA512", 8, 60, 1);
+      } else {
+        registry.register("a", "HmacSHA1", 6, 30, 0);
+      }
+    }
+    done.set(true);
+    reader.join();
+    assertEquals(0, torn.get());
+    assertEquals(1, registry.size());
+  }
+
+  @Test
+  void testAdvanceCounterOnce() throws InterruptedException {
+    var registry = new AccountRegistry();
+    int slot = registry.register("a", "HmacSHA1", 6, 30, 0);
+    var accepted = new AtomicInteger();
+    var threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread(() -> {
+        for (long counter = 1; counter <= 10_000; counter++) {
+          if (registry.advanceCounter(slot, counter)) {
+            accepted.incrementAndGet();
+          }
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    // each counter is accepted at most once, and the last one always is
+    assertTrue(accepted.get() <= 10_000);
+    assertEquals(10_000, registry.getLastCounter(slot));
+    assertFalse(registry.advanceCounter(slot, 10_000));
+  }
+
+  @Test
+  void testSnapshot() throws Exception {
+    var registry = new AccountRegistry();
+    for (int i = 0; i < 5000; i++) {
+      int slot = registry.register("account" + i, i % 2 == 0 ? "HmacSHA1" : "HmacSHA512",
+          6 + i % 3, 30 + i % 7, i + 1);
+      registry.advanceCounter(slot, i * 3L);
+    }
+    var file = dir.resolve("registry.snapshot");
+    registry.save(file);
+    var loaded = AccountRegistry.load(file);
+    assertEquals(registry.size(), loaded.size());
+    for (int slot = 0; slot < registry.size(); slot++) {
+      assertEquals(slot, loaded.slotOf("account" + slot));
+      assertEquals(registry.getConfig(slot), loaded.getConfig(slot));
+      assertEquals(KeyRotation.NO_KEY, loaded.getKeyRef(slot));
+      assertEquals(registry.getLastCounter(slot), loaded.getLastCounter(slot));
+    }
+    assertFalse(loaded.advanceCounter(10, 30));
+    assertEquals(-1, loaded.slotOf("account5000"));
+    loaded.setKeyRef(10, 42);
+    assertEquals(42, loaded.getKeyRef(10));
+  }
+
+}
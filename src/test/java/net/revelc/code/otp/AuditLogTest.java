@@ -0,0 +1,166 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import net.revelc.code.otp.AuditLog.FullPolicy;
+import net.revelc.code.otp.AuditLog.Outcome;
+
+class AuditLogTest {
+
+  private static final int PRODUCERS = 4;
+  private static final int EVENTS = 20_000;
+  private static final Pattern LINE = Pattern.compile(
+      "\\{\"slot\":(\\d+),\"step\":(\\d+),\"outcome\":\"(ACCEPTED|REJECTED|REPLAYED)\","
+          + "\"time\":(\\d+)\\}");
+
+  @TempDir
+  Path tempDir;
+
+  // records EVENTS events from each producer, with the producer as the slot and a sequence number
+  // as the step, and returns the number that record() reported as dropped
+  private static long produce(AuditLog log) throws InterruptedException {
+    var rejected = new AtomicLong();
+    var threads = new Thread[PRODUCERS];
+    for (int p = 0; p < PRODUCERS; p++) {
+      int producer = p;
+      threads[p] = new Thread(() -> {
+        for (int i = 0; i < EVENTS; i++) {
+          if (!log.record(producer, i, Outcome.values()[i % 3], 1_700_000_000L + i)) {
+            rejected.incrementAndGet();
+          }
+        }
+      });
+      threads[p].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    return rejected.get();
+  }
+
+  // reads the lines of the log and its rotated files, oldest first
+  private static List<String> lines(Path file, int maxFiles) throws Exception {
+    var lines = new ArrayList<String>();
+    for (int i = maxFiles; i >= 1; i--) {
+      var rotated = file.resolveSibling(file.getFileName() + "." + i);
+      if (Files.exists(rotated)) {
+        lines.addAll(Files.readAllLines(rotated, StandardCharsets.UTF_8));
+      }
+    }
+    lines.addAll(Files.readAllLines(file, StandardCharsets.UTF_8));
+    return lines;
+  }
+
+  // checks every line is well formed, and that each producer's events appear at most once, in the
+  // order they were recorded; returns the number of lines
+  private static int check(List<String> lines) {
+    var last = new long[PRODUCERS];
+    Arrays.fill(last, -1);
+    for (String line : lines) {
+      var m = LINE.matcher(line);
+      assertTrue(m.matches(), line);
+      int producer = Integer.parseInt(m.group(1));
+      long step = Long.parseLong(m.group(2));
+      assertTrue(step > last[producer], "out of order or duplicated: " + line);
+      last[producer] = step;
+      assertEquals(Outcome.values()[(int) (step % 3)].name(), m.group(3), line);
+      assertEquals(1_700_000_000L + step, Long.parseLong(m.group(4)), line);
+    }
+    return lines.size();
+  }
+
+  @Test
+  void testBlockingKeepsEveryEvent() throws Exception {
+    var file = tempDir.resolve("audit.log");
+    long rejected;
+    try (var log = new AuditLog(file, 8, Long.MAX_VALUE, 0, FullPolicy.BLOCK)) {
+      rejected = produce(log);
+      assertEquals(0, log.getDropped());
+    }
+    assertEquals(0, rejected);
+    assertEquals(PRODUCERS * EVENTS, check(lines(file, 0)));
+  }
+
+  @Test
+  void testDroppingAccountsForEveryEvent() throws Exception {
+    var file = tempDir.resolve("audit.log");
+    long rejected;
+    long dropped;
+    try (var log = new AuditLog(file, 8, Long.MAX_VALUE, 0, FullPolicy.DROP)) {
+      rejected = produce(log);
+      dropped = log.getDropped();
+    }
+    assertEquals(rejected, dropped);
+    assertEquals(PRODUCERS * EVENTS, check(lines(file, 0)) + dropped);
+  }
+
+  @Test
+  void testRotationKeepsEveryEvent() throws Exception {
+    var file = tempDir.resolve("audit.log");
+    int maxFiles = 1_000;
+    try (var log = new AuditLog(file, 16, 64 * 1024, maxFiles, FullPolicy.BLOCK)) {
+      produce(log);
+    }
+    assertTrue(Files.exists(file.resolveSibling("audit.log.2")));
+    for (int i = 1; Files.exists(file.resolveSibling("audit.log." + i)); i++) {
+      assertTrue(Files.size(file.resolveSibling("audit.log." + i)) <= 64 * 1024);
+    }
+    assertEquals(PRODUCERS * EVENTS, check(lines(file, maxFiles)));
+  }
+
+  @Test
+  void testRotationDropsOldestFiles() throws Exception {
+    var file = tempDir.resolve("audit.log");
+    try (var log = new AuditLog(file, 16, 1024, 2, FullPolicy.BLOCK)) {
+      for (int i = 0; i < 1_000; i++) {
+        log.record(0, i, Outcome.values()[i % 3], 1_700_000_000L + i);
+      }
+    }
+    assertTrue(Files.exists(file.resolveSibling("audit.log.2")));
+    assertFalse(Files.exists(file.resolveSibling("audit.log.3")));
+    var lines = lines(file, 2);
+    check(lines);
+    // the newest events are kept
+    assertTrue(lines.get(lines.size() - 1).contains("\"step\":999,"));
+  }
+
+  @Test
+  void testRecordAfterClose() throws Exception {
+    var file = tempDir.resolve("audit.log");
+    var log = new AuditLog(file, 8, Long.MAX_VALUE, 0, FullPolicy.BLOCK);
+    assertTrue(log.record(1, 2, Outcome.REJECTED, 3));
+    log.close();
+    assertFalse(log.record(1, 3, Outcome.REJECTED, 4));
+    assertEquals(1, log.getDropped());
+    assertEquals(List.of("{\"slot\":1,\"step\":2,\"outcome\":\"REJECTED\",\"time\":3}"),
+        Files.readAllLines(file, StandardCharsets.UTF_8));
+  }
+}
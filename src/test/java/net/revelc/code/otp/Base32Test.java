@@ -0,0 +1,101 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.common.io.BaseEncoding;
+
+class Base32Test {
+
+  private static final BaseEncoding GUAVA = BaseEncoding.base32();
+
+  // random bytes of every length from 0 to 69, plus all zeros and all ones, which exercise the
+  // padding and truncation of the decoder
+  private static void forEachInput(Consumer<byte[]> check) {
+    var random = new Random(42);
+    for (int length = 0; length < 70; length++) {
+      var bytes = new byte[length];
+      check.accept(bytes.clone());
+      Arrays.fill(bytes, (byte) 0xFF);
+      check.accept(bytes.clone());
+      for (int i = 0; i < 20; i++) {
+        random.nextBytes(bytes);
+        check.accept(bytes.clone());
+      }
+    }
+  }
+
+  @Test
+  void testEncodeMatchesGuava() {
+    forEachInput(bytes -> assertEquals(GUAVA.omitPadding().encode(bytes), Base32.encode(bytes),
+        Arrays.toString(bytes)));
+  }
+
+  @Test
+  void testDecodeMatchesGuava() {
+    forEachInput(bytes -> {
+      var padded = GUAVA.encode(bytes);
+      assertArrayEquals(bytes, Base32.decode(padded), padded);
+      assertArrayEquals(bytes, Base32.decode(padded.toLowerCase(Locale.ROOT)), padded);
+    });
+  }
+
+  @Test
+  void testRoundTrip() {
+    forEachInput(bytes -> assertArrayEquals(bytes, Base32.decode(Base32.encode(bytes))));
+  }
+
+  @Test
+  void testDecodeBytesMatchesDecodeString() {
+    forEachInput(bytes -> {
+      var encoded = Base32.encode(bytes);
+      assertArrayEquals(bytes, Base32.decode(encoded.getBytes(StandardCharsets.US_ASCII)));
+      var padded = GUAVA.encode(bytes).toLowerCase(Locale.ROOT);
+      assertArrayEquals(bytes, Base32.decode(padded.getBytes(StandardCharsets.US_ASCII)));
+    });
+    // including lengths that aren't valid base32, and chars that aren't base32 digits
+    var random = new Random(42);
+    var alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567abcxyz 0189=-";
+    for (int length = 0; length < 70 * 20; length++) {
+      var encoded = new StringBuilder();
+      for (int i = 0; i < length / 20; i++) {
+        encoded.append(alphabet.charAt(random.nextInt(alphabet.length())));
+      }
+      var s = encoded.toString();
+      assertArrayEquals(Base32.decode(s), Base32.decode(s.getBytes(StandardCharsets.US_ASCII)), s);
+    }
+  }
+
+  @Test
+  void testRfc4648Vectors() {
+    String[][] vectors = {{"", ""}, {"f", "MY"}, {"fo", "MZXQ"}, {"foo", "MZXW6"},
+        {"foob", "MZXW6YQ"}, {"fooba", "MZXW6YTB"}, {"foobar", "MZXW6YTBOI"}};
+    for (String[] v : vectors) {
+      var bytes = v[0].getBytes(StandardCharsets.US_ASCII);
+      assertEquals(v[1], Base32.encode(bytes));
+      assertArrayEquals(bytes, Base32.decode(v[1]));
+    }
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BatchVerifierTest {
+
+  private static final String KEY = "GEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQ";
+  // accounts with two, three and four byte UTF-8 characters
+  private static final String[] ACCOUNTS = {"zo\u00eb", "\u7528\u6237", "\ud83d\udd11"};
+  private static final Options OPTIONS = Options.parse(new String[] {"--totp"});
+
+  @TempDir
+  Path tempDir;
+
+  private static String code(String key, long timestamp) {
+    return new Otp(OPTIONS).generateOtp(key, BigInteger.valueOf(timestamp / 30));
+  }
+
+  private String verify(String records, int threads) throws Exception {
+    var input = tempDir.resolve("records.csv");
+    Files.write(input, records.getBytes(StandardCharsets.UTF_8));
+    var out = new StringWriter();
+    new BatchVerifier(OPTIONS, threads).verify(input, out);
+    return out.toString();
+  }
+
+  @Test
+  void testOutcomes() throws Exception {
+    var records = "# account,key,code,timestamp\n"
+        + "alice," + KEY + "," + code(KEY, 1_700_000_000) + ",1700000000\n"
+        + "\n"
+        + "bob, " + KEY + " , " + code(KEY, 1_700_000_000) + " ,1700000030\r\n"
+        + "carol," + KEY + "," + code(KEY, 59) + ",59";
+    assertEquals("alice,1700000000,VALID\n"
+        + "bob,1700000030,INVALID\n"
+        + "carol,59,VALID\n", verify(records, 2));
+  }
+
+  @Test
+  void testMalformedKeepsTimestamp() throws Exception {
+    var records = "alice," + KEY + ",1700000000\n"
+        + "bob,x,y," + KEY + ",123456,1700000000\n"
+        + "carol," + KEY + ",123456,soon\n"
+        + "dave," + KEY + ",123456,-60\n"
+        + "erin\n"
+        + "frank,not base32!,123456,1700000000\n"
+        + "grace,,123456,1700000000\n"
+        + "heidi,!!!,123456,1700000000\n";
+    assertEquals("alice,1700000000,MALFORMED\n"
+        + "bob,1700000000,MALFORMED\n"
+        + "carol,soon,MALFORMED\n"
+        + "dave,-60,MALFORMED\n"
+        + "erin,,MALFORMED\n"
+        + "frank,1700000000,INVALID\n"
+        + "grace,1700000000,MALFORMED\n"
+        + "heidi,1700000000,MALFORMED\n", verify(records, 1));
+  }
+
+  @Test
+  void testUtf8Accounts() throws Exception {
+    var code = code(KEY, 1_700_000_000);
+    var records = ACCOUNTS[0] + "," + KEY + "," + code + ",1700000000\n"
+        + ACCOUNTS[1] + "," + KEY + "," + code + ",1700000000\n"
+        + ACCOUNTS[2] + "," + KEY + ",000000,1700000000\n";
+    assertEquals(ACCOUNTS[0] + ",1700000000,VALID\n"
+        + ACCOUNTS[1] + ",1700000000,VALID\n"
+        + ACCOUNTS[2] + ",1700000000,INVALID\n", verify(records, 3));
+  }
+
+  @Test
+  void testOrderAcrossChunks() throws Exception {
+    // enough records for several chunks, so they are verified in parallel and out of order
+    var records = new StringBuilder();
+    var expected = new StringBuilder();
+    for (int i = 0; i < 200_000; i++) {
+      long timestamp = 1_700_000_000L + i * 30L;
+      var valid = i % 3 != 0;
+      var code = valid ? code(KEY, timestamp) : code(KEY, timestamp + 30);
+      records.append(ACCOUNTS[i % 3]).append(i).append(',').append(KEY).append(',')
+          .append(code).append(',').append(timestamp).append('\n');
+      expected.append(ACCOUNTS[i % 3]).append(i).append(',').append(timestamp).append(',')
+          .append(valid ? "VALID" : "INVALID").append('\n');
+    }
+    assertEquals(expected.toString(), verify(records.toString(), 4));
+  }
+
+  @Test
+  void testThreads() {
+    assertThrows(IllegalArgumentException.class, () -> new BatchVerifier(OPTIONS, 0));
+  }
+
+  @Test
+  void testUnusableProvider() {
+    // configuration errors abort, rather than marking every record malformed
+    assertThrows(IllegalArgumentException.class, () -> new BatchVerifier(
+        Options.parse(new String[] {"--totp", "--provider", "SUN"}), 1));
+    assertThrows(IllegalArgumentException.class, () -> new BatchVerifier(
+        Options.parse(new String[] {"--totp", "--provider", "Bogus"}), 1));
+  }
+}
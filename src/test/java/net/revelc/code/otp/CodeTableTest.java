@@ -0,0 +1,217 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CodeTableTest {
+
+  // RFC 6238 Appendix B
+  private static final String SEED20 = "12345678901234567890";
+  private static final String SEED32 = SEED20 + "123456789012";
+  private static final String SEED64 = SEED20 + SEED20 + SEED20 + "1234";
+  private static final long[] TIMES = {59L, 1111111109L, 1111111111L, 1234567890L, 2000000000L,
+      20000000000L};
+
+  @TempDir
+  Path tempDir;
+
+  private static Options options(String algorithm, int digits) {
+    return Options.parse(new String[] {"--totp", "--" + algorithm, "-d=" + digits});
+  }
+
+  private static String key(String seed) {
+    return Base32.encode(seed.getBytes(US_ASCII));
+  }
+
+  private CodeTable export(Options options, Map<String, String> keys, long start, int steps)
+      throws IOException {
+    var file = tempDir.resolve("codes-" + options.getAlgorithm() + "-" + start);
+    CodeTable.export(options, keys, start, steps, file);
+    return CodeTable.open(file);
+  }
+
+  private void assertVectors(String algorithm, String seed, String... expected)
+      throws IOException {
+    var options = options(algorithm, 8);
+    for (int i = 0; i < TIMES.length; i++) {
+      long step = TIMES[i] / 30;
+      // the vector is in the middle of the table, among other accounts
+      var keys = new LinkedHashMap<String, String>();
+      keys.put("before", key("another seed 1234567"));
+      keys.put("rfc", key(seed));
+      keys.put("after", key("yet another seed 890"));
+      var table = export(options, keys, step - 1, 3);
+      var time = Instant.ofEpochSecond(TIMES[i]);
+      assertTrue(table.isValid("rfc", expected[i], time), "T=" + TIMES[i]);
+      assertFalse(table.isValid("before", expected[i], time), "T=" + TIMES[i]);
+      assertFalse(table.isValid("rfc", expected[i], time.plusSeconds(30)), "T=" + TIMES[i]);
+      assertEquals(options.getAlgorithm(), table.getAlgorithm());
+      assertEquals(8, table.getDigits());
+      assertEquals(30, table.getTimestep());
+      assertEquals(step - 1, table.getStartCounter());
+      assertEquals(3, table.getSteps());
+    }
+  }
+
+  @Test
+  void testRfc6238Sha1() throws IOException {
+    assertVectors("sha1", SEED20, "94287082", "07081804", "14050471", "89005924", "69279037",
+        "65353130");
+  }
+
+  @Test
+  void testRfc6238Sha256() throws IOException {
+    assertVectors("sha256", SEED32, "46119246", "68084774", "67062674", "91819424", "90698825",
+        "77737706");
+  }
+
+  @Test
+  void testRfc6238Sha512() throws IOException {
+    assertVectors("sha512", SEED64, "90693936", "25091201", "99943326", "93441116", "38618901",
+        "47863826");
+  }
+
+  @Test
+  void testCoveredRange() throws IOException {
+    // RFC 4226 Appendix D codes, as time steps 1 to 9 of 30 seconds
+    String[] expected = {"755224", "287082", "359152", "969429", "338314", "254676", "287922",
+        "162583", "399871", "520489"};
+    var table = export(options("sha1", 6), Map.of("rfc", key(SEED20)), 2, 5);
+    for (int counter = 0; counter < expected.length; counter++) {
+      boolean covered = counter >= 2 && counter < 7;
+      // the first and last second of each step
+      assertEquals(covered, table.isValid("rfc", expected[counter],
+          Instant.ofEpochSecond(counter * 30L)), "counter " + counter);
+      assertEquals(covered, table.isValid("rfc", expected[counter],
+          Instant.ofEpochSecond(counter * 30L + 29)), "counter " + counter);
+    }
+    assertFalse(table.isValid("rfc", expected[2], Instant.ofEpochSecond(-30)));
+  }
+
+  @Test
+  void testRejectedCodes() throws IOException {
+    var table = export(options("sha1", 6), Map.of("rfc", key(SEED20)), 0, 1);
+    var time = Instant.ofEpochSecond(0);
+    assertTrue(table.isValid("rfc", "755224", time));
+    assertFalse(table.isValid("unknown", "755224", time));
+    assertFalse(table.isValid("rfc", null, time));
+    assertFalse(table.isValid("rfc", "", time));
+    assertFalse(table.isValid("rfc", "55224", time));
+    assertFalse(table.isValid("rfc", "0755224", time));
+    assertFalse(table.isValid("rfc", "75522a", time));
+    assertFalse(table.isValid("rfc", "75522/", time));
+    assertFalse(table.isValid("rfc", "-55224", time));
+  }
+
+  @Test
+  void testTenDigitsDontOverflow() throws IOException {
+    // Options stops at 8 digits, but the format allows 10, so patch the digits and first code
+    var file = tempDir.resolve("codes");
+    CodeTable.export(options("sha1", 6), Map.of("rfc", key(SEED20)), 0, 1, file);
+    var bytes = ByteBuffer.wrap(Files.readAllBytes(file));
+    bytes.put(5, (byte) 10);
+    bytes.putInt(28, 5);
+    Files.write(file, bytes.array());
+    var table = CodeTable.open(file);
+    var time = Instant.ofEpochSecond(0);
+    assertTrue(table.isValid("rfc", "0000000005", time));
+    // 5 + 2^32, which wraps around to 5 as an int
+    assertFalse(table.isValid("rfc", "4294967301", time));
+  }
+
+  @Test
+  void testNoAccounts() throws IOException {
+    var table = export(options("sha1", 6), Map.of(), 0, 10);
+    assertFalse(table.isValid("rfc", "755224", Instant.ofEpochSecond(0)));
+  }
+
+  @Test
+  void testUnicodeAccountNames() throws IOException {
+    var keys = new LinkedHashMap<String, String>();
+    keys.put("zo\u00eb", key(SEED20));
+    keys.put("\u7528\u6237", key(SEED32));
+    var table = export(options("sha1", 6), keys, 0, 1);
+    assertTrue(table.isValid("zo\u00eb", "755224", Instant.ofEpochSecond(0)));
+    assertFalse(table.isValid("\u7528\u6237", "755224", Instant.ofEpochSecond(0)));
+  }
+
+  @Test
+  void testInvalidExports() {
+    var file = tempDir.resolve("codes");
+    var keys = Map.of("rfc", key(SEED20));
+    assertThrows(IllegalArgumentException.class,
+        () -> CodeTable.export(options("sha1", 6), keys, 0, 0, file));
+    assertThrows(IllegalArgumentException.class,
+        () -> CodeTable.export(options("sha1", 6), keys, -1, 1, file));
+    assertThrows(IllegalArgumentException.class, () -> CodeTable.export(options("sha1", 6),
+        Map.of("x".repeat(0x10000), key(SEED20)), 0, 1, file));
+  }
+
+  @Test
+  void testMalformedFiles() throws IOException {
+    var file = tempDir.resolve("codes");
+    var keys = new LinkedHashMap<String, String>();
+    keys.put("alice", key(SEED20));
+    keys.put("bob", key(SEED32));
+    CodeTable.export(options("sha1", 6), keys, 0, 4, file);
+    var bytes = Files.readAllBytes(file);
+    var broken = tempDir.resolve("broken");
+
+    // truncated in the header, the codes and the account names
+    for (int length : new int[] {0, 3, 20, 28, 28 + 4 * 8 - 1, bytes.length - 1}) {
+      Files.write(broken, Arrays.copyOf(bytes, length));
+      assertThrows(IOException.class, () -> CodeTable.open(broken), "length " + length);
+    }
+
+    var badMagic = bytes.clone();
+    badMagic[0] ^= 1;
+    Files.write(broken, badMagic);
+    assertThrows(IOException.class, () -> CodeTable.open(broken));
+
+    // byte 4 is the algorithm, 5 the digits; 8 the time step, 20 the steps and 24 the accounts
+    for (int[] field : new int[][] {{4, 1, 3}, {5, 1, 0}, {5, 1, 11}, {8, 4, 0}, {20, 4, -1},
+        {24, 4, -1}, {24, 4, 1_000}}) {
+      var corrupt = ByteBuffer.wrap(bytes.clone());
+      if (field[1] == 1) {
+        corrupt.put(field[0], (byte) field[2]);
+      } else {
+        corrupt.putInt(field[0], field[2]);
+      }
+      Files.write(broken, corrupt.array());
+      assertThrows(IOException.class, () -> CodeTable.open(broken), Arrays.toString(field));
+    }
+
+    // the untouched file still opens
+    Files.write(broken, bytes);
+    assertTrue(CodeTable.open(broken).isValid("alice", "755224", Instant.ofEpochSecond(0)));
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// the tests that select use algorithms no other test selects, as selections are kept for the
+// life of the JVM
+class HmacProvidersTest {
+
+  @TempDir
+  Path tempDir;
+
+  @Test
+  void testMisspelledProviderProperty() {
+    System.setProperty(HmacProviders.PROVIDER_PROPERTY, "SunJCEE");
+    try {
+      var e = assertThrows(IllegalArgumentException.class,
+          () -> HmacProviders.select("HmacSHA384"));
+      assertEquals("Unknown provider: SunJCEE", e.getMessage());
+    } finally {
+      System.clearProperty(HmacProviders.PROVIDER_PROPERTY);
+    }
+  }
+
+  @Test
+  void testProviderWithoutAlgorithm() {
+    var e = assertThrows(IllegalArgumentException.class,
+        () -> HmacProviders.pin("HmacSHA384", "SUN"));
+    assertEquals("HmacSHA384 not available from SUN", e.getMessage());
+  }
+
+  @Test
+  void testUnknownProviderOption() {
+    var options = Options.parse(new String[] {"--hotp", "-c", "1", "--provider", "Bogus", "AE"});
+    assertThrows(IllegalArgumentException.class, () -> new Otp(options).generate());
+  }
+
+  @Test
+  void testUnwritableCache() throws Exception {
+    // a directory can't be written as a file, but the selection is made and kept anyway
+    System.setProperty(HmacProviders.CACHE_PROPERTY, tempDir.toString());
+    try {
+      var selection = HmacProviders.select("HmacSHA224");
+      assertFalse(selection.isFromCache());
+      assertSame(selection, HmacProviders.select("HmacSHA224"));
+      assertEquals("HmacSHA224", HmacProviders.getMac("HmacSHA224").getAlgorithm());
+    } finally {
+      System.clearProperty(HmacProviders.CACHE_PROPERTY);
+    }
+  }
+
+  @Test
+  void testCachedSelection() throws Exception {
+    var file = tempDir.resolve("providers.properties");
+    System.setProperty(HmacProviders.CACHE_PROPERTY, file.toString());
+    try {
+      var measured = HmacProviders.decide("HmacSHA256");
+      assertFalse(measured.isFromCache());
+      assertFalse(measured.getNanosPerOperation().isEmpty());
+      assertTrue(Files.exists(file));
+
+      var cached = HmacProviders.decide("HmacSHA256");
+      assertTrue(cached.isFromCache());
+      assertEquals(measured.getProviderName(), cached.getProviderName());
+      assertTrue(cached.getNanosPerOperation().isEmpty());
+
+      // another algorithm has its own entry
+      assertFalse(HmacProviders.decide("HmacSHA1").isFromCache());
+      assertTrue(HmacProviders.decide("HmacSHA1").isFromCache());
+      assertTrue(HmacProviders.decide("HmacSHA256").isFromCache());
+    } finally {
+      System.clearProperty(HmacProviders.CACHE_PROPERTY);
+    }
+  }
+
+  @Test
+  void testCacheIgnoredWhenFingerprintDiffers() throws Exception {
+    var file = tempDir.resolve("providers.properties");
+    System.setProperty(HmacProviders.CACHE_PROPERTY, file.toString());
+    try {
+      HmacProviders.decide("HmacSHA256");
+      // as if written by another JVM
+      var cache = new Properties();
+      try (var in = Files.newInputStream(file)) {
+        cache.load(in);
+      }
+      cache.setProperty("HmacSHA256.fingerprint", "1.0;SunJCE/1.0");
+      try (var out = Files.newOutputStream(file)) {
+        cache.store(out, null);
+      }
+      assertFalse(HmacProviders.decide("HmacSHA256").isFromCache());
+      // and the new decision replaced it
+      assertTrue(HmacProviders.decide("HmacSHA256").isFromCache());
+
+      // a provider that isn't installed anymore
+      cache.setProperty("HmacSHA256.provider", "Gone");
+      try (var out = Files.newOutputStream(file)) {
+        cache.store(out, null);
+      }
+      assertFalse(HmacProviders.decide("HmacSHA256").isFromCache());
+    } finally {
+      System.clearProperty(HmacProviders.CACHE_PROPERTY);
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.jupiter.api.Test;
+
+class KeyArenaTest {
+
+  private static final String[] ALGORITHMS = {"HmacSHA1", "HmacSHA256", "HmacSHA512"};
+
+  private static byte[] mac(String algorithm, byte[] key, byte[] message) throws Exception {
+    var mac = Mac.getInstance(algorithm);
+    mac.init(new SecretKeySpec(key, algorithm));
+    return mac.doFinal(message);
+  }
+
+  @Test
+  void testHmacMatchesMac() throws Exception {
+    var random = new Random(42);
+    for (String algorithm : ALGORITHMS) {
+      // small slabs, so the keys span several of them
+      try (var arena = new KeyArena(algorithm, 7)) {
+        for (int length = 1; length <= 200; length++) {
+          var key = new byte[length];
+          random.nextBytes(key);
+          var message = new byte[length % 3 == 0 ? 8 : length];
+          random.nextBytes(message);
+          int slot = arena.store(key);
+          assertArrayEquals(mac(algorithm, key, message), arena.hmac(slot, message),
+              algorithm + " with a key of " + length + " bytes");
+        }
+      }
+    }
+  }
+
+  @Test
+  void testFreeZeroesAndRejectsDoubleFree() throws Exception {
+    var message = new byte[8];
+    try (var arena = new KeyArena("HmacSHA1")) {
+      int slot = arena.store("12345678901234567890".getBytes());
+      arena.free(slot);
+      // a zeroed slot is the same as a key of zeroes, once padded to the block size
+      assertArrayEquals(mac("HmacSHA1", new byte[1], message), arena.hmac(slot, message));
+      assertThrows(IllegalArgumentException.class, () -> arena.free(slot));
+      assertThrows(IllegalArgumentException.class, () -> arena.copyKey(slot));
+      int first = arena.store(new byte[] {1});
+      int second = arena.store(new byte[] {2});
+      assertNotEquals(first, second);
+      assertEquals(2, arena.size());
+      assertThrows(IllegalArgumentException.class, () -> arena.free(5));
+    }
+  }
+
+  @Test
+  void testCloseZeroes() throws Exception {
+    var arena = new KeyArena("HmacSHA512", 3);
+    for (int i = 0; i < 10; i++) {
+      arena.store(("key" + i).getBytes());
+    }
+    var field = KeyArena.class.getDeclaredField("slabs");
+    field.setAccessible(true);
+    var slabs = (ByteBuffer[]) field.get(arena);
+    assertEquals(4, slabs.length);
+    arena.close();
+    for (ByteBuffer slab : slabs) {
+      for (int i = 0; i < slab.capacity(); i++) {
+        assertEquals(0, slab.get(i));
+      }
+    }
+    assertEquals(0, arena.size());
+    assertThrows(IllegalStateException.class, () -> arena.hmac(0, new byte[8]));
+    assertThrows(IllegalStateException.class, () -> arena.store(new byte[1]));
+  }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.jupiter.api.Test;
+
+class KeyRotationTest {
+
+  private static final byte[] OLD_KEY = "12345678901234567890".getBytes(US_ASCII);
+  private static final byte[] NEW_KEY = "abcdefghijabcdefghij".getBytes(US_ASCII);
+
+  private final AccountRegistry registry = new AccountRegistry();
+  private final KeyArena arena = new KeyArena("HmacSHA1");
+  private final KeyRotation rotation =
+      new KeyRotation(registry, algorithm -> arena, new TimingWheel(16, 60));
+
+  private int enroll(String account, byte[] key) {
+    return registry.register(account, "HmacSHA1", 6, 30, arena.store(key));
+  }
+
+  private static String code(byte[] key, long step) {
+    try {
+      var mac = Mac.getInstance("HmacSHA1");
+      mac.init(new SecretKeySpec(key, "HmacSHA1"));
+      var hmac = mac.doFinal(OtpKernels.writeCounter(new byte[OtpKernels.MESSAGE_LENGTH], step));
+      return OtpKernels.format(OtpKernels.otp(hmac, 6), 6);
+    } catch (GeneralSecurityException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Test
+  void testGraceAndConfirmation() {
+    int slot = enroll("a", OLD_KEY);
+    rotation.begin(slot, NEW_KEY.clone(), 600);
+    assertTrue(rotation.verify(slot, code(OLD_KEY, 1), 30, 0));
+    assertEquals(2, arena.size());
+    assertTrue(rotation.verify(slot, code(NEW_KEY, 2), 60, 0));
+    // the new key was proven, so the old one is dropped at once
+    assertEquals(KeyRotation.NO_KEY, rotation.getPendingKeyRef(slot));
+    assertEquals(1, arena.size());
+    assertFalse(rotation.verify(slot, code(OLD_KEY, 3), 90, 0));
+    assertTrue(rotation.verify(slot, code(NEW_KEY, 3), 90, 0));
+  }
+
+  @Test
+  void testExpiryInBulk() {
+    for (int i = 0; i < 100; i++) {
+      rotation.begin(enroll("a" + i, OLD_KEY), NEW_KEY.clone(), 600 + i);
+    }
+    assertEquals(0, rotation.expire(599));
+    assertEquals(100, rotation.expire(700));
+    assertEquals(100, arena.size());
+    assertFalse(rotation.verify(registry.slotOf("a7"), code(OLD_KEY, 24), 720, 0));
+    assertTrue(rotation.verify(registry.slotOf("a7"), code(NEW_KEY, 24), 720, 0));
+  }
+
+  @Test
+  void testRotateAndExpireConcurrently() throws InterruptedException {
+    int slot = enroll("a", OLD_KEY);
+    var stop = new AtomicBoolean();
+    var failure = new AtomicReference<Throwable>();
+    var rotator = new Thread(() -> {
+      for (long now = 1; !stop.get(); now++) {
+        rotation.begin(slot, NEW_KEY.clone(), now - 1);
+      }
+    });
+    var expirer = new Thread(() -> {
+      for (long now = 1; !stop.get(); now++) {
+        rotation.expire(now);
+      }
+    });
+    rotator.setUncaughtExceptionHandler((t, e) -> failure.set(e));
+    expirer.setUncaughtExceptionHandler((t, e) -> failure.set(e));
+    rotator.setDaemon(true);
+    expirer.setDaemon(true);
+    rotator.start();
+    expirer.start();
+    Thread.sleep(2000);
+    assertNull(ManagementFactory.getThreadMXBean().findDeadlockedThreads());
+    stop.set(true);
+    rotator.join(5000);
+    expirer.join(5000);
+    assertFalse(rotator.isAlive() || expirer.isAlive());
+    assertNull(failure.get());
+  }
+
+  @Test
+  void testNoMatchFromReusedKeys() throws InterruptedException {
+    // while "b" rotates, its freed key slots are reused by "c"; codes from the keys of "c" must
+    // never be accepted for "b"
+    int b = enroll("b", OLD_KEY);
+    int c = enroll("c", OLD_KEY);
+    var otherKey = "zyxwvutsrqzyxwvutsrq".getBytes(US_ASCII);
+    var stop = new AtomicBoolean();
+    var rotator = new Thread(() -> {
+      while (!stop.get()) {
+        rotation.begin(b, OLD_KEY.clone(), 0);
+        rotation.begin(c, otherKey.clone(), 0);
+        rotation.expire(Long.MAX_VALUE / 2);
+      }
+    });
+    rotator.setDaemon(true);
+    rotator.start();
+    try {
+      for (int i = 0; i < 20_000; i++) {
+        assertFalse(rotation.verify(b, code(otherKey, i), i * 30L, 0));
+      }
+    } finally {
+      stop.set(true);
+      rotator.join(5000);
+    }
+  }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.jupiter.api.Test;
+
+class OtpKernelsTest {
+
+  // RFC 6238 Appendix B seeds, which extend the RFC 4226 Appendix D one
+  private static final String SEED20 = "12345678901234567890";
+  private static final String SEED32 = SEED20 + "123456789012";
+  private static final String SEED64 = SEED20 + SEED20 + SEED20 + "1234";
+
+  private static final long[] TIMES = {59L, 1111111109L, 1111111111L, 1234567890L, 2000000000L,
+      20000000000L};
+
+  private static String otp(String algorithm, String seed, long counter, int digits)
+      throws Exception {
+    var mac = Mac.getInstance(algorithm);
+    mac.init(new SecretKeySpec(seed.getBytes(US_ASCII), algorithm));
+    var message = OtpKernels.writeCounter(new byte[OtpKernels.MESSAGE_LENGTH], counter);
+    return OtpKernels.format(OtpKernels.otp(mac.doFinal(message), digits), digits);
+  }
+
+  private static void assertTotps(String algorithm, String seed, String... expected)
+      throws Exception {
+    for (int i = 0; i < TIMES.length; i++) {
+      assertEquals(expected[i], otp(algorithm, seed, TIMES[i] / 30, 8), "T=" + TIMES[i]);
+    }
+  }
+
+  @Test
+  void testRfc4226() throws Exception {
+    String[] expected = {"755224", "287082", "359152", "969429", "338314", "254676", "287922",
+        "162583", "399871", "520489"};
+    for (int counter = 0; counter < expected.length; counter++) {
+      assertEquals(expected[counter], otp("HmacSHA1", SEED20, counter, 6));
+    }
+  }
+
+  @Test
+  void testRfc6238Sha1() throws Exception {
+    assertTotps("HmacSHA1", SEED20, "94287082", "07081804", "14050471", "89005924", "69279037",
+        "65353130");
+  }
+
+  @Test
+  void testRfc6238Sha256() throws Exception {
+    assertTotps("HmacSHA256", SEED32, "46119246", "68084774", "67062674", "91819424", "90698825",
+        "77737706");
+  }
+
+  @Test
+  void testRfc6238Sha512() throws Exception {
+    assertTotps("HmacSHA512", SEED64, "90693936", "25091201", "99943326", "93441116", "38618901",
+        "47863826");
+  }
+
+  @Test
+  void testEveryDigitCount() throws Exception {
+    // RFC 4226 Appendix D, counter 0: the truncated value is 1284755224
+    for (int digits = 1; digits <= OtpKernels.MAX_DIGITS; digits++) {
+      var expected = "1284755224".substring(OtpKernels.MAX_DIGITS - digits);
+      assertEquals(expected, otp("HmacSHA1", SEED20, 0, digits));
+    }
+    assertEquals("0001", OtpKernels.format(1, 4));
+    assertThrows(IllegalArgumentException.class, () -> OtpKernels.format(0, 0));
+    assertThrows(IllegalArgumentException.class, () -> OtpKernels.format(0, 11));
+  }
+
+  @Test
+  void testKernels() {
+    var message = new byte[OtpKernels.MESSAGE_LENGTH];
+    assertArrayEquals(new byte[] {0, 0, 0, 0, 0x23, 0x52, (byte) 0x3E, (byte) 0xC0},
+        OtpKernels.writeCounter(message, 592_592_576L));
+    assertArrayEquals(new byte[] {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+        (byte) 0xFF, (byte) 0xFF, (byte) 0xFF}, OtpKernels.writeCounter(message, -1L));
+
+    // the last byte selects the offset, and the sign bit is cleared
+    var hmac = new byte[20];
+    hmac[19] = 15;
+    hmac[15] = (byte) 0xFF;
+    hmac[16] = (byte) 0xFF;
+    hmac[17] = (byte) 0xFF;
+    hmac[18] = (byte) 0xFF;
+    assertEquals(Integer.MAX_VALUE, OtpKernels.truncate(hmac));
+    hmac[19] = 0;
+    assertEquals(0, OtpKernels.truncate(hmac));
+  }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+class SecretGeneratorTest {
+
+  private static SecretGenerator generator(String... args) {
+    return new SecretGenerator(Options.parse(args));
+  }
+
+  @Test
+  void testSecretLengths() {
+    assertEquals(20, generator("--totp", "--sha1").generateSecret().length);
+    assertEquals(32, generator("--totp", "--sha256").generateSecret().length);
+    assertEquals(64, generator("--totp", "--sha512").generateSecret().length);
+    var secret = generator("--totp", "--sha256").generateBase32Secret();
+    assertEquals(32, Base32.decode(secret).length);
+    assertThrows(IllegalArgumentException.class,
+        () -> SecretGenerator.recommendedLength("HmacMD5"));
+  }
+
+  @Test
+  void testTotpUri() {
+    var uri = generator("--totp", "-d=8", "--sha256", "-s", "60").toUri("ACME Co",
+        "alice@example.com", "JBSWY3DPEHPK3PXP");
+    assertEquals("otpauth://totp/ACME%20Co:alice%40example.com?secret=JBSWY3DPEHPK3PXP"
+        + "&issuer=ACME%20Co&algorithm=SHA256&digits=8&period=60", uri);
+  }
+
+  @Test
+  void testHotpUri() {
+    var uri = generator("--hotp", "-c", "42").toUri("ACME", "bob", "JBSWY3DPEHPK3PXP");
+    assertEquals("otpauth://hotp/ACME:bob?secret=JBSWY3DPEHPK3PXP"
+        + "&issuer=ACME&algorithm=SHA1&digits=6&counter=42", uri);
+  }
+
+  @Test
+  void testUriEscaping() {
+    var uri = generator("--totp").toUri("A&B=C", "Zo\u00eb:1+1/2?#", "AAAA");
+    // reserved characters, spaces and non-ASCII characters are percent encoded
+    assertEquals("otpauth://totp/A%26B%3DC:Zo%C3%AB%3A1%2B1%2F2%3F%23?secret=AAAA"
+        + "&issuer=A%26B%3DC&algorithm=SHA1&digits=6&period=30", uri);
+  }
+
+  @Test
+  void testProvisionKeepsOrder() throws Exception {
+    var generator = generator("--totp");
+    var accounts = new ArrayList<String>();
+    for (int i = 0; i < 1_000; i++) {
+      accounts.add("user" + i + "@example.com");
+    }
+    var out = new StringWriter();
+    // a batch size that doesn't divide the number of accounts, so the last batch is partial
+    assertEquals(1_000, generator.provision("ACME", accounts, out, 64));
+    var lines = List.of(out.toString().split("\n"));
+    assertEquals(accounts.size(), lines.size());
+    var pattern = Pattern.compile("otpauth://totp/ACME:(.*)\\?secret=([A-Z2-7]+)&issuer=ACME"
+        + "&algorithm=SHA1&digits=6&period=30");
+    var secrets = new HashSet<String>();
+    for (int i = 0; i < lines.size(); i++) {
+      var m = pattern.matcher(lines.get(i));
+      assertTrue(m.matches(), lines.get(i));
+      assertEquals("user" + i + "%40example.com", m.group(1));
+      assertEquals(20, Base32.decode(m.group(2)).length);
+      secrets.add(m.group(2));
+    }
+    assertEquals(accounts.size(), secrets.size());
+    assertThrows(IllegalArgumentException.class,
+        () -> generator.provision("ACME", accounts, new StringWriter(), 0));
+  }
+
+  @Test
+  void testProvisionNothing() throws Exception {
+    var out = new StringWriter();
+    assertEquals(0, generator("--totp").provision("ACME", List.of(), out, 10));
+    assertEquals("", out.toString());
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp.cluster;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Test;
+
+import net.revelc.code.otp.Base32;
+import net.revelc.code.otp.Options;
+import net.revelc.code.otp.totp.TotpGenerator;
+
+class PartitionedVerifierTest {
+
+  // RFC 4226 Appendix D; at T = 59 the time step is 1
+  private static final String KEY = Base32.encode("12345678901234567890".getBytes(US_ASCII));
+  private static final String CODE = "287082";
+  private static final Options OPTIONS = Options.parse(new String[] {"--totp"});
+
+  // runs a hook right after the accounts of each partition are copied out
+  private static class HookedTransport extends InProcessTransport {
+    private Consumer<String> hook = partition -> {};
+
+    @Override
+    public List<AccountState> exportUnowned(String partition, HashRing ring) {
+      var states = super.exportUnowned(partition, ring);
+      hook.accept(partition);
+      return states;
+    }
+  }
+
+  private final HookedTransport transport = new HookedTransport();
+  private final PartitionedVerifier verifier;
+
+  PartitionedVerifierTest() {
+    transport.addPartition("p0");
+    transport.addPartition("p1");
+    verifier = new PartitionedVerifier(transport, new HashRing(64, Set.of("p0", "p1")), 0,
+        Clock.fixed(Instant.ofEpochSecond(59), ZoneOffset.UTC));
+  }
+
+  private static String code(String key, long epochSeconds) {
+    return new TotpGenerator(key, Clock.fixed(Instant.ofEpochSecond(epochSeconds), ZoneOffset.UTC))
+        .generateTotp().getOtp();
+  }
+
+  // an account that moves to the given partition when it is added
+  private String movingAccount(String partition) {
+    var newRing = verifier.getRing().with(partition);
+    for (int i = 0;; i++) {
+      if (newRing.ownerOf("account" + i).equals(partition)) {
+        return "account" + i;
+      }
+    }
+  }
+
+  @Test
+  void testRebalance() {
+    for (int i = 0; i < 1000; i++) {
+      verifier.enroll("account" + i, OPTIONS, KEY);
+    }
+    transport.addPartition("p2");
+    verifier.addPartition("p2");
+    int total = 0;
+    for (String partition : verifier.getPartitions()) {
+      int size = transport.getPartition(partition).size();
+      assertTrue(size > 200, partition + " has " + size);
+      total += size;
+    }
+    assertEquals(1000, total);
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(verifier.verify("account" + i, CODE));
+      assertFalse(verifier.verify("account" + i, CODE));
+    }
+  }
+
+  @Test
+  void testNoReplayAcrossMove() {
+    var account = movingAccount("p2");
+    verifier.enroll(account, OPTIONS, KEY);
+    var owner = verifier.getRing().ownerOf(account);
+    var accepted = new boolean[1];
+    // a login on the previous owner, after the account was copied out of it
+    transport.hook = partition -> {
+      if (partition.equals(owner)) {
+        accepted[0] = verifier.verify(account, CODE);
+      }
+    };
+    transport.addPartition("p2");
+    verifier.addPartition("p2");
+    assertTrue(accepted[0]);
+    assertEquals(1, transport.getPartition("p2").size());
+    assertFalse(verifier.verify(account, CODE));
+  }
+
+  @Test
+  void testNoRetiredKeyAcrossMove() {
+    var account = movingAccount("p2");
+    var newKey = Base32.encode("abcdefghijklmnopqrst".getBytes(US_ASCII));
+    verifier.enroll(account, OPTIONS, KEY);
+    assertTrue(verifier.rotate(account, newKey, Duration.ofDays(1)));
+    var owner = verifier.getRing().ownerOf(account);
+    var accepted = new boolean[1];
+    // the first code from the new key, on the previous owner after the account was copied out,
+    // which retires the old key there
+    transport.hook = partition -> {
+      if (partition.equals(owner)) {
+        accepted[0] = verifier.verify(account, code(newKey, 59));
+      }
+    };
+    transport.addPartition("p2");
+    verifier.addPartition("p2");
+    assertTrue(accepted[0]);
+
+    // a step later, the new owner only accepts the new key
+    var later = new PartitionedVerifier(transport, verifier.getRing(), 0,
+        Clock.fixed(Instant.ofEpochSecond(89), ZoneOffset.UTC));
+    assertFalse(later.verify(account, code(KEY, 89)));
+    assertTrue(later.verify(account, code(newKey, 89)));
+  }
+
+  @Test
+  void testEnrollmentWaitsForMove() throws InterruptedException {
+    var account = movingAccount("p2");
+    var enrollment = new Thread(() -> verifier.enroll(account, OPTIONS, KEY));
+    var blocked = new boolean[1];
+    transport.hook = partition -> {
+      if (enrollment.getState() == Thread.State.NEW) {
+        enrollment.start();
+        try {
+          enrollment.join(200);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        blocked[0] = enrollment.isAlive();
+      }
+    };
+    transport.addPartition("p2");
+    verifier.addPartition("p2");
+    enrollment.join();
+    assertTrue(blocked[0]);
+    assertEquals(1, transport.getPartition("p2").size());
+    assertTrue(verifier.verify(account, CODE));
+  }
+
+}
@@ -0,0 +1,262 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp.totp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import net.revelc.code.otp.Base32;
+
+class EncryptedTotpKeyStoreTest {
+
+  private static final Clock CLOCK =
+      Clock.fixed(Instant.parse("2030-01-01T00:00:00Z"), ZoneOffset.UTC);
+
+  @TempDir
+  Path tempDir;
+
+  private final Random random = new Random(42);
+  private final SecretKey masterKey = new SecretKeySpec(bytes(32), "AES");
+
+  private byte[] bytes(int length) {
+    var bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  private String newKey() {
+    return Base32.encode(bytes(20));
+  }
+
+  private static String code(String key) {
+    return new TotpGenerator(key, CLOCK).generateTotp().getOtp();
+  }
+
+  private static String wrongCode(String key) {
+    var code = code(key);
+    return (code.charAt(0) == '0' ? "1" : "0") + code.substring(1);
+  }
+
+  @Test
+  void testVerify() {
+    var store = new EncryptedTotpKeyStore(masterKey, 10, CLOCK);
+    var key = newKey();
+    store.setKey("alice", key);
+    assertTrue(store.verifyTotp("alice", code(key), 1));
+    assertFalse(store.verifyTotp("alice", wrongCode(key), 1));
+    assertFalse(store.verifyTotp("alice", null, 1));
+    assertFalse(store.verifyTotp("bob", code(key), 1));
+    assertEquals(key, store.getKey("alice"));
+    assertNull(store.getKey("bob"));
+  }
+
+  @Test
+  void testLeastRecentlyUsedEviction() {
+    var store = new EncryptedTotpKeyStore(masterKey, 2, CLOCK);
+    var a = newKey();
+    var b = newKey();
+    var c = newKey();
+    store.setKey("a", a);
+    store.setKey("b", b);
+    store.setKey("c", c);
+
+    assertTrue(store.verifyTotp("a", code(a), 0)); // miss
+    assertTrue(store.verifyTotp("b", code(b), 0)); // miss
+    assertTrue(store.verifyTotp("a", code(a), 0)); // hit, so b is now the eldest
+    assertTrue(store.verifyTotp("c", code(c), 0)); // miss, evicts b
+    assertEquals(2, store.cachedKeys());
+    assertTrue(store.verifyTotp("a", code(a), 0)); // hit
+    assertTrue(store.verifyTotp("b", code(b), 0)); // miss, evicts c
+    assertTrue(store.verifyTotp("a", code(a), 0)); // hit
+    assertEquals(3, store.getCacheHits());
+    assertEquals(4, store.getCacheMisses());
+    // the evicted keys were wiped from the arena, not only dropped from the cache
+    assertEquals(2, store.cachedKeys());
+  }
+
+  @Test
+  void testGetKeyBypassesCache() {
+    var store = new EncryptedTotpKeyStore(masterKey, 2, CLOCK);
+    var key = newKey();
+    store.setKey("alice", key);
+    assertEquals(key, store.getKey("alice"));
+    assertEquals(key, store.getKey("alice"));
+    assertEquals(0, store.cachedKeys());
+    assertEquals(0, store.getCacheHits());
+    assertEquals(0, store.getCacheMisses());
+  }
+
+  @Test
+  void testSetKeyReplacesCachedKey() {
+    var store = new EncryptedTotpKeyStore(masterKey, 2, CLOCK);
+    var oldKey = newKey();
+    var newKey = newKey();
+    store.setKey("alice", oldKey);
+    assertTrue(store.verifyTotp("alice", code(oldKey), 0));
+    store.setKey("alice", newKey);
+    assertEquals(0, store.cachedKeys());
+    assertFalse(store.verifyTotp("alice", code(oldKey), 0));
+    assertTrue(store.verifyTotp("alice", code(newKey), 0));
+    store.removeKey("alice");
+    assertEquals(0, store.cachedKeys());
+    assertFalse(store.verifyTotp("alice", code(newKey), 0));
+  }
+
+  @Test
+  void testClearCache() {
+    var store = new EncryptedTotpKeyStore(masterKey, 10, CLOCK);
+    var keys = new String[5];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = newKey();
+      store.setKey("account-" + i, keys[i]);
+      assertTrue(store.verifyTotp("account-" + i, code(keys[i]), 0));
+    }
+    assertEquals(5, store.cachedKeys());
+    store.clearCache();
+    assertEquals(0, store.cachedKeys());
+    assertTrue(store.verifyTotp("account-0", code(keys[0]), 0));
+    assertEquals(0, store.getCacheHits());
+    assertEquals(6, store.getCacheMisses());
+  }
+
+  @Test
+  void testNoCache() {
+    var store = new EncryptedTotpKeyStore(masterKey, 0, CLOCK);
+    var key = newKey();
+    store.setKey("alice", key);
+    assertTrue(store.verifyTotp("alice", code(key), 0));
+    assertTrue(store.verifyTotp("alice", code(key), 0));
+    assertEquals(0, store.cachedKeys());
+    assertEquals(0, store.getCacheHits());
+    assertEquals(2, store.getCacheMisses());
+  }
+
+  @Test
+  void testConcurrentVerificationWithEvictions() throws Exception {
+    var store = new EncryptedTotpKeyStore(masterKey, 3, CLOCK);
+    var keys = new String[16];
+    var codes = new String[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = newKey();
+      codes[i] = code(keys[i]);
+      store.setKey("account-" + i, keys[i]);
+    }
+    var threads = new Thread[4];
+    var failures = new AtomicInteger();
+    for (int t = 0; t < threads.length; t++) {
+      int offset = t;
+      threads[t] = new Thread(() -> {
+        for (int i = 0; i < 2_000; i++) {
+          int account = (i * 7 + offset) % keys.length;
+          // a key freed and reused while being used would make the code fail
+          if (!store.verifyTotp("account-" + account, codes[account], 0)) {
+            failures.incrementAndGet();
+          }
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(0, failures.get());
+    assertTrue(store.cachedKeys() <= 3);
+  }
+
+  @Test
+  void testSaveAndLoad() throws Exception {
+    var store = new EncryptedTotpKeyStore(masterKey, 10, CLOCK);
+    var alice = newKey();
+    var bob = newKey();
+    store.setKey("alice", alice);
+    store.setKey("bob", bob);
+    var file = tempDir.resolve("keys");
+    store.save(file);
+    // the keys are never written in the clear
+    var contents = new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1);
+    assertFalse(contents.contains(alice));
+    assertFalse(contents.contains(bob));
+
+    var loaded = new EncryptedTotpKeyStore(masterKey, 10, CLOCK);
+    loaded.load(file);
+    assertEquals(alice, loaded.getKey("alice"));
+    assertEquals(bob, loaded.getKey("bob"));
+    assertTrue(loaded.verifyTotp("bob", code(bob), 0));
+
+    // a different master key can't open them
+    var other = new EncryptedTotpKeyStore(new SecretKeySpec(bytes(32), "AES"), 10, CLOCK);
+    other.load(file);
+    assertThrows(IllegalStateException.class, () -> other.getKey("alice"));
+  }
+
+  @Test
+  void testLoadRejectsOtherFiles() throws Exception {
+    var file = tempDir.resolve("garbage");
+    Files.write(file, bytes(64));
+    var store = new EncryptedTotpKeyStore(masterKey, 10, CLOCK);
+    assertThrows(IOException.class, () -> store.load(file));
+  }
+
+  @Test
+  void testSealedKeyBoundToAccount() throws Exception {
+    var store = new EncryptedTotpKeyStore(masterKey, 10, CLOCK);
+    var key = newKey();
+    store.setKey("alice", key);
+    var file = tempDir.resolve("keys");
+    store.save(file);
+
+    // move the sealed key to another account of the same length, keeping the file well formed
+    var contents = Files.readAllBytes(file);
+    var from = "alice".getBytes(StandardCharsets.UTF_8);
+    var to = "carol".getBytes(StandardCharsets.UTF_8);
+    int moved = 0;
+    for (int i = 0; i + from.length <= contents.length; i++) {
+      if (Arrays.equals(contents, i, i + from.length, from, 0, from.length)) {
+        System.arraycopy(to, 0, contents, i, to.length);
+        moved++;
+      }
+    }
+    assertEquals(1, moved);
+    Files.write(file, contents);
+
+    var loaded = new EncryptedTotpKeyStore(masterKey, 10, CLOCK);
+    loaded.load(file);
+    assertNull(loaded.getKey("alice"));
+    assertThrows(IllegalStateException.class, () -> loaded.getKey("carol"));
+    assertThrows(IllegalStateException.class,
+        () -> loaded.verifyTotp("carol", code(key), 0));
+    assertEquals(0, loaded.cachedKeys());
+  }
+}
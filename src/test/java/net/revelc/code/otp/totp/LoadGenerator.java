@@ -0,0 +1,343 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp.totp;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.crypto.KeyGenerator;
+
+import net.revelc.code.otp.Base32;
+
+/**
+ * Synthetic load generator for TOTP verification. It builds a fleet of random keys, then has a
+ * number of threads verify a mix of valid, stale, replayed and garbage codes against them, using a
+ * simulated clock that advances one time step every {@code --ops-per-step} verifications. Results
+ * are printed as a single JSON object. Latency covers only the server side verification, while the
+ * allocation rate also includes building the simulated client requests.
+ *
+ * <p>
+ * Run with:
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *   -Dexec.mainClass=net.revelc.code.otp.totp.LoadGenerator -Dexec.args="--keys 1000000"
+ * </pre>
+ */
+public class LoadGenerator {
+
+  private enum Kind {
+    VALID, STALE, REPLAYED, GARBAGE
+  }
+
+  private static final int TIMESTEP = 30;
+  private static final int MAX_SAMPLES_PER_THREAD = 1 << 20;
+
+  private int numKeys = 100_000;
+  private int threads = Runtime.getRuntime().availableProcessors();
+  private long opsPerThread = 200_000;
+  private long opsPerStep = 100_000;
+  private int window = 1;
+  private int[] mix = {70, 10, 10, 10};
+  private long seed = 42;
+  private String store = "plain";
+  private int cacheSize = 10_000;
+
+  private final SimulatedClock clock = new SimulatedClock(Instant.parse("2030-01-01T00:00:00Z"));
+  private final AtomicLong totalOps = new AtomicLong();
+  private final AtomicLongArray accepted = new AtomicLongArray(Kind.values().length);
+  private final AtomicLongArray attempted = new AtomicLongArray(Kind.values().length);
+  private final AtomicLong allocatedBytes = new AtomicLong();
+  private String[] keys;
+  private EncryptedTotpKeyStore keyStore;
+
+  public static void main(String[] args) throws Exception {
+    var generator = new LoadGenerator();
+    generator.parse(args);
+    generator.buildFleet();
+    System.out.println(generator.run());
+  }
+
+  private void parse(String[] args) {
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      var value = args[i + 1];
+      switch (args[i]) {
+        case "--keys":
+          numKeys = Integer.parseInt(value);
+          break;
+        case "--threads":
+          threads = Integer.parseInt(value);
+          break;
+        case "--ops":
+          opsPerThread = Long.parseLong(value);
+          break;
+        case "--ops-per-step":
+          opsPerStep = Long.parseLong(value);
+          break;
+        case "--window":
+          window = Integer.parseInt(value);
+          break;
+        case "--mix":
+          // valid,stale,replayed,garbage weights, e.g. 70,10,10,10
+          mix = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+          if (mix.length != Kind.values().length) {
+            throw new IllegalArgumentException("Mix needs 4 weights: " + value);
+          }
+          break;
+        case "--seed":
+          seed = Long.parseLong(value);
+          break;
+        case "--store":
+          // plain (keys held as strings) or encrypted (keys held in an EncryptedTotpKeyStore)
+          store = value;
+          break;
+        case "--cache-size":
+          cacheSize = Integer.parseInt(value);
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option: " + args[i]);
+      }
+    }
+  }
+
+  private void buildFleet() throws Exception {
+    var random = new SplittableRandom(seed);
+    var secret = new byte[20];
+    keys = new String[numKeys];
+    for (int i = 0; i < numKeys; i++) {
+      random.nextBytes(secret);
+      keys[i] = Base32.encode(secret);
+    }
+    if ("encrypted".equals(store)) {
+      var kg = KeyGenerator.getInstance("AES");
+      kg.init(256);
+      keyStore = new EncryptedTotpKeyStore(kg.generateKey(), cacheSize, clock);
+      for (int i = 0; i < numKeys; i++) {
+        keyStore.setKey(account(i), keys[i]);
+      }
+    } else if (!"plain".equals(store)) {
+      throw new IllegalArgumentException("Unknown store: " + store);
+    }
+  }
+
+  private String run() throws InterruptedException {
+    var samples = new ArrayList<long[]>();
+    var sampleCounts = new int[threads];
+    var done = new CountDownLatch(threads);
+    var workers = new ArrayList<Thread>();
+    for (int t = 0; t < threads; t++) {
+      var threadSamples = new long[(int) Math.min(MAX_SAMPLES_PER_THREAD, opsPerThread)];
+      samples.add(threadSamples);
+      int index = t;
+      var random = new SplittableRandom(seed + 1 + t);
+      workers.add(new Thread(() -> {
+        try {
+          sampleCounts[index] = work(random, threadSamples);
+        } finally {
+          done.countDown();
+        }
+      }, "load-" + t));
+    }
+    long start = System.nanoTime();
+    workers.forEach(Thread::start);
+    done.await();
+    long elapsed = System.nanoTime() - start;
+
+    int total = Arrays.stream(sampleCounts).sum();
+    var all = new long[total];
+    int pos = 0;
+    for (int t = 0; t < threads; t++) {
+      System.arraycopy(samples.get(t), 0, all, pos, sampleCounts[t]);
+      pos += sampleCounts[t];
+    }
+    Arrays.sort(all);
+    double seconds = elapsed / 1e9;
+    var json = new StringBuilder("{");
+    json.append("\"keys\":").append(numKeys);
+    json.append(",\"threads\":").append(threads);
+    json.append(",\"store\":\"").append(store).append('"');
+    json.append(",\"operations\":").append(totalOps.get());
+    json.append(",\"seconds\":").append(String.format(Locale.ROOT, "%.3f", seconds));
+    json.append(",\"throughputPerSecond\":")
+        .append(String.format(Locale.ROOT, "%.1f", totalOps.get() / seconds));
+    json.append(",\"latencyNanos\":{\"p50\":").append(percentile(all, 0.50));
+    json.append(",\"p99\":").append(percentile(all, 0.99));
+    json.append(",\"p999\":").append(percentile(all, 0.999));
+    json.append(",\"max\":").append(all.length == 0 ? 0 : all[all.length - 1]).append('}');
+    json.append(",\"allocatedBytes\":").append(allocatedBytes.get());
+    json.append(",\"allocationRateBytesPerSecond\":")
+        .append(String.format(Locale.ROOT, "%.0f", allocatedBytes.get() / seconds));
+    if (keyStore != null) {
+      json.append(",\"cacheHits\":").append(keyStore.getCacheHits());
+      json.append(",\"cacheMisses\":").append(keyStore.getCacheMisses());
+    }
+    json.append(",\"outcomes\":{");
+    for (Kind kind : Kind.values()) {
+      json.append(kind.ordinal() == 0 ? "" : ",").append('"')
+          .append(kind.name().toLowerCase(Locale.ROOT))
+          .append("\":{\"attempted\":").append(attempted.get(kind.ordinal()))
+          .append(",\"accepted\":").append(accepted.get(kind.ordinal())).append('}');
+    }
+    json.append("}}");
+    return json.toString();
+  }
+
+  private int work(SplittableRandom random, long[] samples) {
+    var threadBean = ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+    long allocatedBefore = allocatedBytes(threadBean, threadId);
+    int mixTotal = Arrays.stream(mix).sum();
+    int sampleCount = 0;
+    String lastValid = null;
+    int lastValidKey = 0;
+    for (long i = 0; i < opsPerThread; i++) {
+      if (totalOps.incrementAndGet() % opsPerStep == 0) {
+        clock.advanceSeconds(TIMESTEP);
+      }
+      int keyIndex = random.nextInt(numKeys);
+      var kind = pick(random.nextInt(mixTotal), mixTotal);
+      String code;
+      // build the client side of the request outside of the measured section, from the plain
+      // fleet, so the server's lookup below is the only one to touch the store and its cache
+      var client = new TotpGenerator(keys[keyIndex], clock);
+      long counter = client.getCounter().longValueExact();
+      switch (kind) {
+        case VALID:
+          code = client.generateOtp(counter);
+          lastValid = code;
+          lastValidKey = keyIndex;
+          break;
+        case STALE:
+          code = client.generateOtp(counter - window - 1 - random.nextInt(10));
+          break;
+        case REPLAYED:
+          if (lastValid != null) {
+            keyIndex = lastValidKey;
+            code = lastValid;
+          } else {
+            code = client.generateOtp(counter);
+          }
+          break;
+        default:
+          code = String.format("%06d", random.nextInt(1_000_000));
+          break;
+      }
+
+      long start = System.nanoTime();
+      boolean ok = verify(keyIndex, code, window);
+      long latency = System.nanoTime() - start;
+
+      attempted.incrementAndGet(kind.ordinal());
+      if (ok) {
+        accepted.incrementAndGet(kind.ordinal());
+      }
+      if (sampleCount < samples.length) {
+        samples[sampleCount++] = latency;
+      } else {
+        // reservoir sampling, once the sample array is full
+        long slot = random.nextLong(i + 1);
+        if (slot < samples.length) {
+          samples[(int) slot] = latency;
+        }
+      }
+    }
+    allocatedBytes.addAndGet(allocatedBytes(threadBean, threadId) - allocatedBefore);
+    return sampleCount;
+  }
+
+  private Kind pick(int roll, int mixTotal) {
+    for (Kind kind : Kind.values()) {
+      roll -= mix[kind.ordinal()];
+      if (roll < 0) {
+        return kind;
+      }
+    }
+    return Kind.GARBAGE;
+  }
+
+  private boolean verify(int index, String code, int window) {
+    if (keyStore == null) {
+      return new TotpGenerator(keys[index], clock).verifyTotp(code, window);
+    }
+    return keyStore.verifyTotp(account(index), code, window);
+  }
+
+  private static String account(int index) {
+    return "account-" + index;
+  }
+
+  private static long allocatedBytes(ThreadMXBean bean, long threadId) {
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(threadId);
+    }
+    return 0;
+  }
+
+  private static long percentile(long[] sorted, double p) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    return sorted[(int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1)];
+  }
+
+  /**
+   * A clock that only moves when told to, shared by all the worker threads
+   */
+  static class SimulatedClock extends Clock {
+    private final AtomicLong millis;
+
+    SimulatedClock(Instant start) {
+      this.millis = new AtomicLong(start.toEpochMilli());
+    }
+
+    void advanceSeconds(long seconds) {
+      millis.addAndGet(seconds * 1000);
+    }
+
+    @Override
+    public ZoneId getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      if (zone.normalized().equals(ZoneOffset.UTC)) {
+        return this;
+      }
+      throw new UnsupportedOperationException("Only UTC is supported: " + zone);
+    }
+
+    @Override
+    public long millis() {
+      return millis.get();
+    }
+
+    @Override
+    public Instant instant() {
+      return Instant.ofEpochMilli(millis());
+    }
+  }
+}
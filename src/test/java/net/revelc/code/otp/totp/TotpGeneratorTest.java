@@ -0,0 +1,60 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp.totp;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.common.io.BaseEncoding;
+
+class TotpGeneratorTest {
+
+  // RFC 6238 Appendix B seed for HMAC-SHA1
+  private static final String KEY =
+      BaseEncoding.base32().encode("12345678901234567890".getBytes(US_ASCII));
+
+  private static TotpGenerator at(Instant time) {
+    return new TotpGenerator(KEY, Clock.fixed(time, ZoneOffset.UTC));
+  }
+
+  @Test
+  void testRangeBoundsFromSingleSample() {
+    var totps = at(Instant.ofEpochMilli(58_981_000L)).generateTotps(3);
+    assertEquals(3, totps.size());
+    for (int i = 0; i < 3; i++) {
+      assertEquals((1966L + i) * 30_000, totps.get(i).getValidFromMillis());
+      assertEquals((1967L + i) * 30_000, totps.get(i).getValidUntilMillis());
+    }
+    assertEquals(29, totps.get(0).getSecondsRemaining());
+    assertEquals(59, totps.get(1).getSecondsRemaining());
+    assertEquals(totps.get(1).getOtp(),
+        at(Instant.ofEpochMilli(59_010_000L)).generateTotp().getOtp());
+  }
+
+  @Test
+  void testValidityBeyondIntSeconds() {
+    // RFC 6238 Appendix B, T = 20000000000; the end of this step doesn't fit in an int
+    var totp = at(Instant.ofEpochSecond(20_000_000_000L)).generateTotp();
+    assertEquals("353130", totp.getOtp());
+    assertEquals(20_000_000_010_000L, totp.getValidUntilMillis());
+  }
+
+}
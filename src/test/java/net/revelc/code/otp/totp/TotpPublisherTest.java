@@ -0,0 +1,425 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp.totp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import net.revelc.code.otp.totp.TotpPublisher.Rotation;
+
+class TotpPublisherTest {
+
+  private static final Instant START = Instant.parse("2030-01-01T00:00:00Z");
+  private static final String KEY = "GEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQ";
+  private static final String OTHER_KEY = "JBSWY3DPEHPK3PXPJBSWY3DPEHPK3PXP";
+
+  private final ManualClock clock = new ManualClock(START);
+  private final ManualScheduler scheduler = new ManualScheduler(clock);
+  private final TotpPublisher publisher = new TotpPublisher(30, clock, scheduler);
+
+  private static String code(String key, Clock clock) {
+    return new TotpGenerator(key, clock).generateTotp().getOtp();
+  }
+
+  // moves to the next time step, and runs the rotation
+  private void nextStep() {
+    clock.advanceSeconds(30);
+    scheduler.runDue();
+  }
+
+  @Test
+  void testRotations() {
+    var subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+    publisher.forKey(KEY).subscribe(subscriber);
+    assertEquals(1, subscriber.received.size());
+    assertEquals(code(KEY, clock), subscriber.received.get(0).getOtp());
+    assertEquals(START.plusSeconds(30), subscriber.received.get(0).getValidUntil());
+
+    nextStep();
+    nextStep();
+    assertEquals(3, subscriber.received.size());
+    assertEquals(code(KEY, clock), subscriber.received.get(2).getOtp());
+    assertEquals(START.plusSeconds(90), subscriber.received.get(2).getValidUntil());
+  }
+
+  @Test
+  void testSubscribersOfDifferentKeys() {
+    var subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+    var other = new RecordingSubscriber(Long.MAX_VALUE);
+    var again = new RecordingSubscriber(Long.MAX_VALUE);
+    publisher.forKey(KEY).subscribe(subscriber);
+    publisher.forKey(OTHER_KEY).subscribe(other);
+    publisher.forKey(KEY).subscribe(again);
+    nextStep();
+    assertEquals(code(KEY, clock), subscriber.received.get(1).getOtp());
+    assertEquals(code(OTHER_KEY, clock), other.received.get(1).getOtp());
+    assertEquals(code(KEY, clock), again.received.get(1).getOtp());
+    // a single tick is scheduled for all the subscriptions
+    assertEquals(1, scheduler.pending());
+  }
+
+  @Test
+  void testDemand() {
+    var subscriber = new RecordingSubscriber(1);
+    publisher.forKey(KEY).subscribe(subscriber);
+    assertEquals(1, subscriber.received.size());
+    nextStep();
+    assertEquals(1, subscriber.received.size());
+    subscriber.subscription.request(2);
+    assertEquals(2, subscriber.received.size());
+    assertEquals(code(KEY, clock), subscriber.received.get(1).getOtp());
+    nextStep();
+    assertEquals(3, subscriber.received.size());
+    nextStep();
+    assertEquals(3, subscriber.received.size());
+  }
+
+  @Test
+  void testKeepsLatestWithoutDemand() {
+    var subscriber = new RecordingSubscriber(0);
+    publisher.forKey(KEY).subscribe(subscriber);
+    nextStep();
+    nextStep();
+    nextStep();
+    assertTrue(subscriber.received.isEmpty());
+    subscriber.subscription.request(10);
+    // only the code that is valid now, as the older ones were replaced
+    assertEquals(1, subscriber.received.size());
+    assertEquals(code(KEY, clock), subscriber.received.get(0).getOtp());
+    assertEquals(START.plusSeconds(120), subscriber.received.get(0).getValidUntil());
+  }
+
+  @Test
+  void testNonPositiveRequest() {
+    var subscriber = new RecordingSubscriber(0);
+    publisher.forKey(KEY).subscribe(subscriber);
+    subscriber.subscription.request(0);
+    assertTrue(subscriber.error instanceof IllegalArgumentException);
+    subscriber.subscription.request(1);
+    assertTrue(subscriber.received.isEmpty());
+  }
+
+  @Test
+  void testCancel() {
+    var subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+    var other = new RecordingSubscriber(Long.MAX_VALUE);
+    publisher.forKey(KEY).subscribe(subscriber);
+    publisher.forKey(KEY).subscribe(other);
+    subscriber.subscription.cancel();
+    nextStep();
+    assertEquals(1, subscriber.received.size());
+    assertEquals(2, other.received.size());
+
+    // once nothing is subscribed, no more ticks are scheduled
+    other.subscription.cancel();
+    nextStep();
+    assertEquals(2, other.received.size());
+    assertEquals(0, scheduler.pending());
+
+    // until something subscribes again
+    var late = new RecordingSubscriber(Long.MAX_VALUE);
+    publisher.forKey(KEY).subscribe(late);
+    assertEquals(1, scheduler.pending());
+    nextStep();
+    assertEquals(2, late.received.size());
+    assertFalse(subscriber.completed);
+  }
+
+  @Test
+  void testCloseCompletes() {
+    var subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+    var waiting = new RecordingSubscriber(0);
+    publisher.forKey(KEY).subscribe(subscriber);
+    publisher.forKey(OTHER_KEY).subscribe(waiting);
+    nextStep();
+    publisher.close();
+    assertTrue(subscriber.completed);
+    assertTrue(waiting.completed);
+    assertEquals(0, scheduler.pending());
+    // a scheduler that was given to the publisher is left running
+    assertFalse(scheduler.isShutdown());
+
+    // the pending rotation is dropped
+    waiting.subscription.request(1);
+    assertTrue(waiting.received.isEmpty());
+
+    var late = new RecordingSubscriber(Long.MAX_VALUE);
+    publisher.forKey(KEY).subscribe(late);
+    assertTrue(late.completed);
+    assertTrue(late.received.isEmpty());
+    assertNull(late.error);
+  }
+
+  @Test
+  void testFailingSubscriber() {
+    var healthy = new RecordingSubscriber(Long.MAX_VALUE);
+    var failing = new RecordingSubscriber(Long.MAX_VALUE, 2);
+    var failingAtOnce = new RecordingSubscriber(Long.MAX_VALUE, 0);
+    publisher.forKey(KEY).subscribe(failing);
+    publisher.forKey(KEY).subscribe(failingAtOnce);
+    publisher.forKey(OTHER_KEY).subscribe(healthy);
+    assertTrue(failingAtOnce.error instanceof IllegalStateException);
+    for (int i = 0; i < 4; i++) {
+      nextStep();
+    }
+    // the rotations go on for the others
+    assertEquals(5, healthy.received.size());
+    assertEquals(code(OTHER_KEY, clock), healthy.received.get(4).getOtp());
+    assertNull(healthy.error);
+    assertEquals(3, failing.received.size());
+    assertTrue(failing.error instanceof IllegalStateException);
+    assertEquals(1, scheduler.pending());
+  }
+
+  private static class RecordingSubscriber implements Flow.Subscriber<Rotation> {
+    private final long initialDemand;
+    private final int failAfter;
+    private final List<Rotation> received = new ArrayList<>();
+    private Flow.Subscription subscription;
+    private boolean completed = false;
+    private Throwable error;
+
+    private RecordingSubscriber(long initialDemand) {
+      this(initialDemand, Integer.MAX_VALUE);
+    }
+
+    // throws from onNext once it received more than the given number of rotations
+    private RecordingSubscriber(long initialDemand, int failAfter) {
+      this.initialDemand = initialDemand;
+      this.failAfter = failAfter;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      this.subscription = subscription;
+      if (initialDemand > 0) {
+        subscription.request(initialDemand);
+      }
+    }
+
+    @Override
+    public void onNext(Rotation item) {
+      received.add(item);
+      if (received.size() > failAfter) {
+        throw new IllegalStateException("Failing on rotation " + received.size());
+      }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      error = throwable;
+    }
+
+    @Override
+    public void onComplete() {
+      completed = true;
+    }
+  }
+
+  /**
+   * A clock that only moves when told to
+   */
+  private static class ManualClock extends Clock {
+    private Instant now;
+
+    private ManualClock(Instant start) {
+      this.now = start;
+    }
+
+    void advanceSeconds(long seconds) {
+      now = now.plusSeconds(seconds);
+    }
+
+    @Override
+    public ZoneId getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      if (zone.normalized().equals(ZoneOffset.UTC)) {
+        return this;
+      }
+      throw new UnsupportedOperationException("Only UTC is supported: " + zone);
+    }
+
+    @Override
+    public Instant instant() {
+      return now;
+    }
+  }
+
+  /**
+   * A scheduler that only runs tasks when told to, once the clock has reached them
+   */
+  private static class ManualScheduler extends AbstractExecutorService
+      implements ScheduledExecutorService {
+    private final Clock clock;
+    private final List<Task> tasks = new ArrayList<>();
+    private boolean shutdown = false;
+
+    private ManualScheduler(Clock clock) {
+      this.clock = clock;
+    }
+
+    void runDue() {
+      while (true) {
+        Task due = null;
+        for (Task task : tasks) {
+          if (task.time <= clock.millis() && (due == null || task.time < due.time)) {
+            due = task;
+          }
+        }
+        if (due == null) {
+          return;
+        }
+        tasks.remove(due);
+        due.done = true;
+        due.command.run();
+      }
+    }
+
+    int pending() {
+      tasks.removeIf(task -> task.cancelled);
+      return tasks.size();
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+      var task = new Task(command, clock.millis() + unit.toMillis(delay));
+      tasks.add(task);
+      return task;
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay,
+        long period, TimeUnit unit) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay,
+        long delay, TimeUnit unit) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+      schedule(command, 0, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void shutdown() {
+      shutdown = true;
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+      shutdown = true;
+      return List.of();
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return shutdown;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+      return shutdown;
+    }
+
+    private class Task implements ScheduledFuture<Object> {
+      private final Runnable command;
+      private final long time;
+      private boolean cancelled = false;
+      private boolean done = false;
+
+      private Task(Runnable command, long time) {
+        this.command = command;
+        this.time = time;
+      }
+
+      @Override
+      public long getDelay(TimeUnit unit) {
+        return unit.convert(time - clock.millis(), TimeUnit.MILLISECONDS);
+      }
+
+      @Override
+      public int compareTo(Delayed other) {
+        return Long.compare(getDelay(TimeUnit.MILLISECONDS),
+            other.getDelay(TimeUnit.MILLISECONDS));
+      }
+
+      @Override
+      public boolean cancel(boolean mayInterruptIfRunning) {
+        if (done) {
+          return false;
+        }
+        cancelled = true;
+        tasks.remove(this);
+        return true;
+      }
+
+      @Override
+      public boolean isCancelled() {
+        return cancelled;
+      }
+
+      @Override
+      public boolean isDone() {
+        return done || cancelled;
+      }
+
+      @Override
+      public Object get() {
+        return null;
+      }
+
+      @Override
+      public Object get(long timeout, TimeUnit unit) {
+        return null;
+      }
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.revelc.code.otp.totp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import net.revelc.code.otp.totp.VerificationThrottle.Limit;
+
+class VerificationThrottleTest {
+
+  private static final Limit UNLIMITED = new Limit(10_000, 10_000);
+
+  private final AtomicLong millis = new AtomicLong(1_000_000);
+
+  private VerificationThrottle throttle(Limit account, Limit source, int freeFailures,
+      long baseSeconds, long maxSeconds) {
+    return new VerificationThrottle(account, source, freeFailures,
+        Duration.ofSeconds(baseSeconds), Duration.ofSeconds(maxSeconds), millis::get);
+  }
+
+  @Test
+  void testTokenRefill() {
+    var throttle = throttle(new Limit(3, 2), UNLIMITED, 10, 1, 1);
+    for (int i = 0; i < 3; i++) {
+      assertTrue(throttle.tryAcquire("a", "s"));
+    }
+    assertFalse(throttle.tryAcquire("a", "s"));
+    // 2 per second, so one token after half a second
+    millis.addAndGet(499);
+    assertFalse(throttle.tryAcquire("a", "s"));
+    millis.addAndGet(1);
+    assertTrue(throttle.tryAcquire("a", "s"));
+    assertFalse(throttle.tryAcquire("a", "s"));
+    // never more than the burst
+    millis.addAndGet(60_000);
+    for (int i = 0; i < 3; i++) {
+      assertTrue(throttle.tryAcquire("a", "s"));
+    }
+    assertFalse(throttle.tryAcquire("a", "s"));
+    // other accounts have their own bucket
+    assertTrue(throttle.tryAcquire("b", "s"));
+  }
+
+  @Test
+  void testSourceLimitAcrossAccounts() {
+    var throttle = throttle(UNLIMITED, new Limit(2, 1), 10, 1, 1);
+    assertTrue(throttle.tryAcquire("a", "s"));
+    assertTrue(throttle.tryAcquire("b", "s"));
+    assertFalse(throttle.tryAcquire("c", "s"));
+    assertTrue(throttle.tryAcquire("c", "t"));
+  }
+
+  @Test
+  void testLockoutGrowsAndIsCapped() {
+    var throttle = throttle(UNLIMITED, UNLIMITED, 2, 1, 8);
+    throttle.recordFailure("a");
+    throttle.recordFailure("a");
+    assertTrue(throttle.tryAcquire("a", "s"));
+    for (long seconds : new long[] {1, 2, 4, 8, 8, 8}) {
+      throttle.recordFailure("a");
+      millis.addAndGet(seconds * 1000 - 1);
+      assertFalse(throttle.tryAcquire("a", "s"), "locked out for " + seconds + "s");
+      millis.addAndGet(1);
+      assertTrue(throttle.tryAcquire("a", "s"), "locked out for " + seconds + "s");
+    }
+    assertTrue(throttle.tryAcquire("b", "s"));
+  }
+
+  @Test
+  void testSuccessResetsFailures() {
+    var throttle = throttle(UNLIMITED, UNLIMITED, 2, 1, 8);
+    throttle.recordFailure("a");
+    throttle.recordFailure("a");
+    throttle.recordSuccess("a");
+    throttle.recordFailure("a");
+    throttle.recordFailure("a");
+    assertTrue(throttle.tryAcquire("a", "s"));
+    throttle.recordFailure("a");
+    assertFalse(throttle.tryAcquire("a", "s"));
+    // the lockout itself isn't lifted by a success, only the count
+    throttle.recordSuccess("a");
+    assertFalse(throttle.tryAcquire("a", "s"));
+    millis.addAndGet(1000);
+    assertTrue(throttle.tryAcquire("a", "s"));
+    throttle.recordFailure("a");
+    assertTrue(throttle.tryAcquire("a", "s"));
+  }
+
+  @Test
+  void testEvictIdle() {
+    // buckets are full again after 10s, lockouts last up to 8s
+    var throttle = throttle(new Limit(10, 1), new Limit(10, 1), 0, 8, 8);
+    assertTrue(throttle.tryAcquire("a", "s"));
+    assertTrue(throttle.tryAcquire("b", "s"));
+    assertEquals(3, throttle.size());
+    millis.addAndGet(9_000);
+    throttle.recordFailure("a");
+    throttle.evictIdle();
+    assertEquals(3, throttle.size());
+    // "b" and "s" are idle, "a" is still locked out
+    millis.addAndGet(2_000);
+    throttle.evictIdle();
+    assertEquals(1, throttle.size());
+    millis.addAndGet(6_000);
+    throttle.evictIdle();
+    assertEquals(0, throttle.size());
+  }
+
+}